@@ -24,12 +24,10 @@ public class AverageActivity {
 		this.averageActivities = new float[period];
 		this.counts = new int[period];
 
-		float[] data = acto.getData();
-
 		for(int i = fromData; i < toData; i++) {
 			int idx = i % period;
 			counts[idx]++;
-			averageActivities[idx] += data[i];
+			averageActivities[idx] += acto.get(i);
 		}
 
 		for(int i = 0; i < period; i++)
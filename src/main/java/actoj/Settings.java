@@ -31,6 +31,10 @@ public class Settings {
 	public static final int DEFAULT_CAL_VALUE = 1;
 	/** Default interval unit */
 	public static final int DEFAULT_CAL_UNIT  = 2; // MINUTES
+	/** Default data storage */
+	public static final int DEFAULT_STORAGE   = 0; // Heap
+	/** Default for caching imported text files */
+	public static final int DEFAULT_CACHE     = 0; // off
 
 	public static final String START_COL = "start_column";
 	public static final String END_COL   = "end_column";
@@ -39,6 +43,8 @@ public class Settings {
 	public static final String SPP       = "samples_per_period";
 	public static final String CAL_VALUE = "calibration_value";
 	public static final String CAL_UNIT  = "calibration_unit";
+	public static final String STORAGE   = "data_storage";
+	public static final String CACHE     = "cache_imports";
 
 	public static final HashMap<String, String> defaults =
 		new HashMap<String, String>();
@@ -51,6 +57,8 @@ public class Settings {
 		defaults.put(SPP,       Integer.toString(DEFAULT_SPP));
 		defaults.put(CAL_UNIT,  Integer.toString(DEFAULT_CAL_UNIT));
 		defaults.put(CAL_VALUE, Integer.toString(DEFAULT_CAL_VALUE));
+		defaults.put(STORAGE,   Integer.toString(DEFAULT_STORAGE));
+		defaults.put(CACHE,     Integer.toString(DEFAULT_CACHE));
 	}
 
 	public static synchronized void set(String key, Object value) throws IOException {
@@ -13,7 +13,6 @@ public class Acrophase {
 	public static ArrayList<Integer> calculate(Actogram a, int from, int to, TimeInterval T) {
 		int period = (int)Math.round(T.millis / a.interval.millis); // a.SAMPLES_PER_PERIOD;
 
-		float[] data = a.getData();
 		int l = (to - from) / period;
 
 		ArrayList<Integer> positions = new ArrayList<Integer>(l);
@@ -22,7 +21,7 @@ public class Acrophase {
 			double s = 0;
 			double c = 0;
 			for(int i = 0; i < period; i++) {
-				float yi = data[offs + i];
+				float yi = a.get(offs + i);
 				double b = 2 * Math.PI * i / period;
 				s += yi * Math.sin(b);
 				c += yi * Math.cos(b);
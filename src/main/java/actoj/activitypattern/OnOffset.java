@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 import actoj.core.Actogram;
+import actoj.core.FloatStorage;
 import actoj.core.TimeInterval;
 
 public class OnOffset {
@@ -16,18 +17,16 @@ public class OnOffset {
 	public static enum ThresholdMethod {
 		MedianWithZero {
 			@Override
-			float calculateThreshold(float[] data, int offs, int len) {
-				float[] tmp = new float[len];
+			float calculateThreshold(float[] data, int offs, int len, float[] tmp) {
 				System.arraycopy(data, offs, tmp, 0, len);
-				Arrays.sort(tmp);
+				Arrays.sort(tmp, 0, len);
 				return tmp[len / 2];
 			}
 		},
 		MedianWithoutZero {
 			@Override
-			float calculateThreshold(float[] data, int offs, int len) {
+			float calculateThreshold(float[] data, int offs, int len, float[] tmp) {
 				int count = 0;
-				float[] tmp = new float[len];
 				for(int i = 0; i < len; i++) {
 					float v = data[offs + i];
 					if(v > 0)
@@ -39,7 +38,7 @@ public class OnOffset {
 		},
 		Mean {
 			@Override
-			float calculateThreshold(float[] data, int offs, int len) {
+			float calculateThreshold(float[] data, int offs, int len, float[] tmp) {
 				float mean = 0;
 				for(int i = 0; i < len; i++) {
 					float v = data[offs + i];
@@ -50,18 +49,22 @@ public class OnOffset {
 		},
 		Zero {
 			@Override
-			float calculateThreshold(float[] data, int offs, int len) {
+			float calculateThreshold(float[] data, int offs, int len, float[] tmp) {
 				return 0;
 			}
 		},
 		Manual {
 			@Override
-			float calculateThreshold(float[] data, int offs, int len) {
+			float calculateThreshold(float[] data, int offs, int len, float[] tmp) {
 				return (float)IJ.getNumber("Manual threshold", 0);
 			}
 		};
 
-		abstract float calculateThreshold(float[] data, int offs, int len);
+		/**
+		 * Calculates the threshold for data[offs, offs + len[.
+		 * @param tmp Scratch buffer of at least len elements.
+		 */
+		abstract float calculateThreshold(float[] data, int offs, int len, float[] tmp);
 	}
 
 	public static String[] thresholdMethods = new String[] {
@@ -75,18 +78,18 @@ public class OnOffset {
 	public void calculate(Actogram a, int from, int to, TimeInterval T, ThresholdMethod thresholdMethod) {
 		int period = (int)Math.round(T.millis / a.interval.millis); // a.SAMPLES_PER_PERIOD;
 
-		float[] data = a.getData();
+		Scratch scratch = new Scratch(period);
 		int l = (to - from) / period;
 
-
-
 		onsets  = new ArrayList<Integer>(l);
 		offsets = new ArrayList<Integer>(l);
 		int[] h1h2 = new int[2];
 		for(int d = 0; d < l; d++) {
 			int offs = from + d * period;
-			float threshold = thresholdMethod.calculateThreshold(data, offs, period);
-			optimizePeriod(data, offs, period, h1h2, threshold);
+			float[] data = scratch.getPeriod(a.getStorage(), offs);
+			int o = data == scratch.period ? 0 : offs;
+			float threshold = thresholdMethod.calculateThreshold(data, o, period, scratch.tmp);
+			optimizePeriod(data, o, period, h1h2, threshold, scratch);
 			onsets.add(offs + h1h2[0]);
 			offsets.add(offs + h1h2[1]);
 		}
@@ -95,7 +98,7 @@ public class OnOffset {
 	public void calculate(Actogram a, int from, int to, TimeInterval T, float threshold) {
 		int period = (int)Math.round(T.millis / a.interval.millis); // a.SAMPLES_PER_PERIOD;
 
-		float[] data = a.getData();
+		Scratch scratch = new Scratch(period);
 		int l = (to - from) / period;
 
 		onsets  = new ArrayList<Integer>(l);
@@ -103,7 +106,9 @@ public class OnOffset {
 		int[] h1h2 = new int[2];
 		for(int d = 0; d < l; d++) {
 			int offs = from + d * period;
-			optimizePeriod(data, offs, period, h1h2, threshold);
+			float[] data = scratch.getPeriod(a.getStorage(), offs);
+			int o = data == scratch.period ? 0 : offs;
+			optimizePeriod(data, o, period, h1h2, threshold, scratch);
 			onsets.add(offs + h1h2[0]);
 			offsets.add(offs + h1h2[1]);
 		}
@@ -117,18 +122,50 @@ public class OnOffset {
 		return offsets;
 	}
 
-	private static void optimizePeriod(float[] data, int offs, int len, int[] ret, float threshold) {
+	/**
+	 * Buffers which are allocated once per calculation and reused for
+	 * each period.
+	 */
+	private static final class Scratch {
+		final float[] period;
+		final float[] tmp;
+		final double[][] table;
+		final int[][] direction;
+
+		Scratch(int len) {
+			period = new float[len];
+			tmp = new float[len];
+			table = new double[3][len];
+			direction = new int[3][len];
+		}
+
+		/**
+		 * Returns the array which holds the period starting at offs:
+		 * The backing array of the storage if there is one, so that it
+		 * is not copied, or otherwise this.period, filled with the data.
+		 */
+		float[] getPeriod(FloatStorage storage, int offs) {
+			float[] a = storage.array();
+			if(a != null)
+				return a;
+			storage.get(offs, period, 0, period.length);
+			return period;
+		}
+	}
+
+	private static void optimizePeriod(float[] data, int offs, int len, int[] ret,
+			float threshold, Scratch scratch) {
 		float amplitude = 1;
-		float[] tmp = new float[len];
+		float[] tmp = scratch.tmp;
 		for(int i = 0; i < len; i++)
 			tmp[i] = data[offs + i] > threshold ? amplitude : 0;
 		offs = 0;
 		data = tmp;
 
-		double[][] table = new double[3][len];
+		double[][] table = scratch.table;
 		final int LEFT = 1;
 		final int DIAG = 2;
-		int[][] direction = new int[3][len];
+		int[][] direction = scratch.direction;
 
 		table[0][0] = data[offs];
 		// initialize first row
@@ -180,7 +217,7 @@ public class OnOffset {
 				0, 0, 1, 1, 1, 0, 0, 0, 0, 0, 1, 1, 1, 1, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0
 		};
 		int[] h1h2 = new int[2];
-		optimizePeriod(data, 0, data.length, h1h2, 0);
+		optimizePeriod(data, 0, data.length, h1h2, 0, new Scratch(data.length));
 		int h1 = h1h2[0];
 		int h2 = h1h2[1];
 		System.out.println(h1 + ", " + h2);
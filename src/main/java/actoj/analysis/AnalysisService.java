@@ -0,0 +1,263 @@
+package actoj.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import actoj.AverageActivity;
+import actoj.activitypattern.Acrophase;
+import actoj.activitypattern.OnOffset;
+import actoj.core.Actogram;
+import actoj.core.TimeInterval;
+import actoj.fitting.FitSine;
+import actoj.periodogram.BatchPeriodogram;
+import actoj.periodogram.Periodogram;
+import actoj.util.Filters;
+
+/**
+ * Runs the analyses of ActogramJ asynchronously on data ranges of
+ * actograms, independent of how the range was selected. All ranges are
+ * sample indices into the given actogram, from inclusive, to exclusive.
+ *
+ * Each method returns immediately with a Future of the result; the
+ * calculation runs on the executor of this service. The canvases and
+ * the headless BatchRunner are clients of this class.
+ */
+public class AnalysisService {
+
+	private static AnalysisService instance;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Returns the shared service, which runs on one daemon thread per
+	 * core.
+	 */
+	public static synchronized AnalysisService getDefault() {
+		if(instance == null) {
+			int n = Runtime.getRuntime().availableProcessors();
+			instance = new AnalysisService(Executors.newFixedThreadPool(n,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ActogramJ analysis " +
+							count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}));
+		}
+		return instance;
+	}
+
+	public AnalysisService(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * On- and offsets, as sample indices, one per period.
+	 */
+	public static class OnOffsets {
+		public final ArrayList<Integer> onsets;
+		public final ArrayList<Integer> offsets;
+		/** The period which was used to split the data. */
+		public final TimeInterval period;
+
+		OnOffsets(ArrayList<Integer> onsets, ArrayList<Integer> offsets,
+				TimeInterval period) {
+			this.onsets = onsets;
+			this.offsets = offsets;
+			this.period = period;
+		}
+	}
+
+	/**
+	 * The average activity pattern within one period.
+	 */
+	public static class ActivityPattern {
+		public final String name;
+		/** The unit of time. */
+		public final String unit;
+		/** The time within the period, calibrated in unit. */
+		public final float[] time;
+		public final float[] values;
+
+		ActivityPattern(String name, String unit, float[] time, float[] values) {
+			this.name = name;
+			this.unit = unit;
+			this.time = time;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * The parameters of max(0, a * sin(b * t + c) + d), with t in
+	 * samples.
+	 */
+	public static class SineFit {
+		public final double[] param;
+
+		SineFit(double[] param) {
+			this.param = param;
+		}
+
+		/** Returns the angular frequency b, per ms. */
+		public double getFrequency(Actogram a) {
+			return param[1] / a.interval.millis;
+		}
+
+		/** Returns the period 2 pi / b. */
+		public TimeInterval getPeriod(Actogram a) {
+			return new TimeInterval(Math.round(2 * Math.PI / getFrequency(a)));
+		}
+
+		/** Returns the fitted curve over the whole actogram. */
+		public Actogram getCurve(Actogram a) {
+			return FitSine.getCurve(a, param);
+		}
+	}
+
+	/**
+	 * Calculates the periodogram of the given actogram.
+	 * @param listener Progress listener, may be null.
+	 */
+	public Future<BatchPeriodogram.Result> periodogram(final Actogram a,
+			final int from, final int to, final BatchPeriodogram.Config config,
+			final Periodogram.ProgressListener listener) {
+		return executor.submit(new Callable<BatchPeriodogram.Result>() {
+			@Override
+			public BatchPeriodogram.Result call() {
+				return BatchPeriodogram.calculate(
+					Collections.singletonList(a), from, to, config, listener)[0];
+			}
+		});
+	}
+
+	/**
+	 * Calculates the periodograms of the given actograms, which must
+	 * agree in their calibration, over the same data range.
+	 * @param listener Progress listener, may be null.
+	 */
+	public Future<BatchPeriodogram.Result[]> periodograms(final List<Actogram> actograms,
+			final int from, final int to, final BatchPeriodogram.Config config,
+			final Periodogram.ProgressListener listener) {
+		return executor.submit(new Callable<BatchPeriodogram.Result[]>() {
+			@Override
+			public BatchPeriodogram.Result[] call() {
+				return BatchPeriodogram.calculate(
+					actograms, from, to, config, listener);
+			}
+		});
+	}
+
+	/**
+	 * Calculates the acrophase in each period T.
+	 */
+	public Future<ArrayList<Integer>> acrophase(final Actogram a,
+			final int from, final int to, final TimeInterval T) {
+		return executor.submit(new Callable<ArrayList<Integer>>() {
+			@Override
+			public ArrayList<Integer> call() {
+				return Acrophase.calculate(a, from, to, T);
+			}
+		});
+	}
+
+	/**
+	 * Calculates the on- and offsets in each period of the actogram,
+	 * after smoothing with a gaussian of the given standard deviation
+	 * (in samples, 0 for no smoothing).
+	 */
+	public Future<OnOffsets> onOffsets(final Actogram a, final int from,
+			final int to, final float sigma,
+			final OnOffset.ThresholdMethod thresholdMethod) {
+		return executor.submit(new Callable<OnOffsets>() {
+			@Override
+			public OnOffsets call() {
+				Actogram s = smooth(a, sigma);
+				TimeInterval period = getPeriod(s);
+				OnOffset onoff = new OnOffset();
+				onoff.calculate(s, from, to, period, thresholdMethod);
+				return new OnOffsets(onoff.getOnsets(), onoff.getOffsets(), period);
+			}
+		});
+	}
+
+	/**
+	 * Like onOffsets(), with a fixed threshold.
+	 */
+	public Future<OnOffsets> onOffsets(final Actogram a, final int from,
+			final int to, final float sigma, final float threshold) {
+		return executor.submit(new Callable<OnOffsets>() {
+			@Override
+			public OnOffsets call() {
+				Actogram s = smooth(a, sigma);
+				TimeInterval period = getPeriod(s);
+				OnOffset onoff = new OnOffset();
+				onoff.calculate(s, from, to, period, threshold);
+				return new OnOffsets(onoff.getOnsets(), onoff.getOffsets(), period);
+			}
+		});
+	}
+
+	/**
+	 * Calculates the average activity pattern for the given period,
+	 * after smoothing with a gaussian of the given standard deviation
+	 * (in samples, 0 for no smoothing).
+	 */
+	public Future<ActivityPattern> averageActivity(final Actogram a,
+			final int from, final int to, final TimeInterval period,
+			final float sigma) {
+		return executor.submit(new Callable<ActivityPattern>() {
+			@Override
+			public ActivityPattern call() {
+				Actogram s = smooth(a, sigma);
+				int periodIdx = s.getIndexForTime(period);
+				float[] values = AverageActivity.calculateAverageActivity(
+					s, from, to, periodIdx);
+				float[] time = new float[periodIdx];
+				float factor = s.interval.intervalIn(s.unit);
+				for(int i = 0; i < periodIdx; i++)
+					time[i] = i * factor;
+				return new ActivityPattern(s.name, s.unit.abbr, time, values);
+			}
+		});
+	}
+
+	/**
+	 * Fits a sine function to the given data range.
+	 */
+	public Future<SineFit> fitSine(final Actogram a, final int from, final int to) {
+		return executor.submit(new Callable<SineFit>() {
+			@Override
+			public SineFit call() {
+				return new SineFit(FitSine.fit(a, from, to));
+			}
+		});
+	}
+
+	/**
+	 * Stops the executor of this service after the submitted analyses
+	 * are finished.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	static Actogram smooth(Actogram a, float sigma) {
+		if(sigma <= 0)
+			return a;
+		return a.getSmoothed(Filters.makeGaussianKernel(sigma));
+	}
+
+	static TimeInterval getPeriod(Actogram a) {
+		return new TimeInterval(a.SAMPLES_PER_PERIOD * a.interval.millis);
+	}
+}
@@ -0,0 +1,220 @@
+package actoj.batch;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import actoj.Settings;
+import actoj.activitypattern.OnOffset;
+import actoj.core.FloatStorage;
+import actoj.core.TimeInterval;
+import actoj.periodogram.BatchPeriodogram;
+
+/**
+ * Settings of a headless batch analysis, read from a properties file.
+ *
+ * The import settings use the same keys as the interactive import
+ * (start_column, end_column, start_row, end_row, samples_per_period,
+ * calibration_value, calibration_unit, data_storage); columns and rows
+ * are 1-based and inclusive, -1 means up to the end of the file. In
+ * addition:
+ * <pre>
+ * input                     comma-separated list of files
+ * output                    output directory (default: .)
+ * delimiter                 tab, comma, semicolon, space or a character
+ * days                      comma-separated day ranges, e.g. 0-7,7-14
+ *                           (end exclusive, default: all)
+ * analyses                  comma-separated subset of periodogram,
+ *                           onoffset, acrophase, average, fitsine
+ * periodogram.method        0 Fourier, 1 Chi-Square, 2 Lomb-Scargle,
+ *                           3 Fourier (FFT), 4 Lomb-Scargle (fast)
+ * periodogram.from_period   in calibration units
+ * periodogram.to_period     in calibration units
+ * periodogram.sigma         gaussian smoothing, in samples
+ * periodogram.stepsize      downsampling factor
+ * periodogram.p_level
+ * onoffset.sigma            gaussian smoothing, in samples
+ * onoffset.threshold        MedianWithZero, MedianWithoutZero, Mean,
+ *                           Zero, or a number
+ * average.period            in calibration units
+ * average.sigma             gaussian smoothing, in samples
+ * </pre>
+ */
+public class BatchConfig {
+
+	public static final String PERIODOGRAM = "periodogram";
+	public static final String ONOFFSET    = "onoffset";
+	public static final String ACROPHASE   = "acrophase";
+	public static final String AVERAGE     = "average";
+	public static final String FITSINE     = "fitsine";
+
+	public final String[] input;
+	public final String output;
+	public final char delimiter;
+
+	/** 0-based first column and number of columns, -1 for all. */
+	public final int fromCol, numCols;
+
+	/** 0-based first line and number of lines. */
+	public final int fromLine, numLines;
+
+	public final int spp;
+	public final TimeInterval.Units unit;
+	public final TimeInterval cal;
+	public final FloatStorage.Type storage;
+
+	/** Day ranges, {from, to} with to exclusive; empty for all. */
+	public final int[][] days;
+
+	private final String analyses;
+
+	public final int periodogramMethod;
+	public final float periodogramFrom, periodogramTo;
+	public final float periodogramSigma;
+	public final int periodogramStepsize;
+	public final double periodogramPLevel;
+
+	public final float onoffsetSigma;
+	/** The threshold method, or null if onoffsetThreshold is used. */
+	public final OnOffset.ThresholdMethod onoffsetMethod;
+	public final float onoffsetThreshold;
+
+	public final float averagePeriod;
+	public final float averageSigma;
+
+	public static Properties load(String file) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		return p;
+	}
+
+	public BatchConfig(Properties p) {
+		input = split(get(p, "input", ""));
+		output = get(p, "output", ".");
+		delimiter = parseDelimiter(get(p, "delimiter", "tab"));
+
+		int startCol = i(p, Settings.START_COL);
+		int endCol = i(p, Settings.END_COL);
+		int startRow = i(p, Settings.START_ROW);
+		int endRow = i(p, Settings.END_ROW);
+		fromCol = startCol - 1;
+		numCols = endCol < 0 ? -1 : endCol - startCol + 1;
+		fromLine = startRow - 1;
+		numLines = endRow < 0 ? Integer.MAX_VALUE : endRow - startRow + 1;
+
+		spp = i(p, Settings.SPP);
+		unit = parseEnum(TimeInterval.Units.class, get(p, Settings.CAL_UNIT,
+			Settings.defaults.get(Settings.CAL_UNIT)));
+		cal = new TimeInterval(i(p, Settings.CAL_VALUE), unit);
+		storage = parseEnum(FloatStorage.Type.class, get(p, Settings.STORAGE,
+			Settings.defaults.get(Settings.STORAGE)));
+
+		days = parseRanges(get(p, "days", ""));
+		analyses = "," + get(p, "analyses", PERIODOGRAM).replaceAll("\\s", "") + ",";
+
+		float per = spp * cal.intervalIn(unit);
+		periodogramMethod = Integer.parseInt(get(p, "periodogram.method", "0"));
+		if(periodogramMethod < 0 || periodogramMethod >= BatchPeriodogram.METHODS.length)
+			throw new IllegalArgumentException("Invalid periodogram method: " + periodogramMethod);
+		periodogramFrom = f(p, "periodogram.from_period", Math.round(per - per / 3));
+		periodogramTo = f(p, "periodogram.to_period", Math.round(per + per / 3));
+		periodogramSigma = f(p, "periodogram.sigma", 0);
+		periodogramStepsize = (int)f(p, "periodogram.stepsize", 1);
+		periodogramPLevel = Double.parseDouble(get(p, "periodogram.p_level", "0.05"));
+
+		onoffsetSigma = f(p, "onoffset.sigma", 5);
+		String th = get(p, "onoffset.threshold",
+			OnOffset.ThresholdMethod.MedianWithoutZero.name());
+		if(Character.isLetter(th.charAt(0))) {
+			onoffsetMethod = OnOffset.ThresholdMethod.valueOf(th);
+			if(onoffsetMethod == OnOffset.ThresholdMethod.Manual)
+				throw new IllegalArgumentException("Specify a number for a manual threshold");
+			onoffsetThreshold = Float.NaN;
+		} else {
+			onoffsetMethod = null;
+			onoffsetThreshold = Float.parseFloat(th);
+		}
+
+		averagePeriod = f(p, "average.period", per);
+		averageSigma = f(p, "average.sigma", 0);
+	}
+
+	public boolean runs(String analysis) {
+		return analyses.contains("," + analysis + ",");
+	}
+
+	public BatchPeriodogram.Config getPeriodogramConfig() {
+		return new BatchPeriodogram.Config(periodogramMethod,
+			new TimeInterval(periodogramFrom, unit),
+			new TimeInterval(periodogramTo, unit),
+			periodogramSigma, periodogramStepsize, periodogramPLevel);
+	}
+
+	private static String get(Properties p, String key, String def) {
+		String v = p.getProperty(key);
+		return v == null ? def : v.trim();
+	}
+
+	private static int i(Properties p, String key) {
+		return Integer.parseInt(get(p, key, Settings.defaults.get(key)));
+	}
+
+	private static float f(Properties p, String key, float def) {
+		String v = p.getProperty(key);
+		return v == null ? def : Float.parseFloat(v.trim());
+	}
+
+	private static String[] split(String s) {
+		ArrayList<String> list = new ArrayList<String>();
+		for(String t : s.split(","))
+			if(t.trim().length() > 0)
+				list.add(t.trim());
+		return list.toArray(new String[list.size()]);
+	}
+
+	private static char parseDelimiter(String s) {
+		if(s.equalsIgnoreCase("tab"))
+			return '\t';
+		if(s.equalsIgnoreCase("comma"))
+			return ',';
+		if(s.equalsIgnoreCase("semicolon"))
+			return ';';
+		if(s.equalsIgnoreCase("space"))
+			return ' ';
+		if(s.length() != 1)
+			throw new IllegalArgumentException("Invalid delimiter: " + s);
+		return s.charAt(0);
+	}
+
+	/**
+	 * Accepts the name of the constant (case-insensitive) or, like the
+	 * settings file, its ordinal.
+	 */
+	private static <E extends Enum<E>> E parseEnum(Class<E> c, String s) {
+		E[] values = c.getEnumConstants();
+		for(E e : values)
+			if(e.name().equalsIgnoreCase(s))
+				return e;
+		return values[Integer.parseInt(s)];
+	}
+
+	private static int[][] parseRanges(String s) {
+		String[] ranges = split(s);
+		int[][] ret = new int[ranges.length][2];
+		for(int i = 0; i < ranges.length; i++) {
+			String[] ft = ranges[i].split("-");
+			if(ft.length != 2)
+				throw new IllegalArgumentException("Invalid day range: " + ranges[i]);
+			ret[i][0] = Integer.parseInt(ft[0].trim());
+			ret[i][1] = Integer.parseInt(ft[1].trim());
+		}
+		return ret;
+	}
+}
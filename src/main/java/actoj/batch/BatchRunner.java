@@ -0,0 +1,357 @@
+package actoj.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import actoj.analysis.AnalysisService;
+import actoj.core.Actogram;
+import actoj.core.ActogramGroup;
+import actoj.core.TimeInterval;
+import actoj.io.ActogramReader;
+import actoj.io.BinaryActogramFile;
+import actoj.periodogram.BatchPeriodogram;
+
+/**
+ * Runs the analyses of ActogramJ without user interface, e.g. on a
+ * server: Reads the files given in a BatchConfig, runs the configured
+ * analyses over all actograms and day ranges on all cores, and writes
+ * the results as tab-separated tables into the output directory, one
+ * file per analysis. The analyses are run by an AnalysisService.
+ *
+ * Usage: java -cp ... actoj.batch.BatchRunner config.properties [file ...]
+ * where files given on the command line replace the configured input.
+ */
+public class BatchRunner {
+
+	private final BatchConfig config;
+
+	private final AnalysisService service;
+
+	private PrintWriter periodogram, onoffset, acrophase, average, fitsine;
+
+	/** Samples per period of the file which is analyzed. */
+	private int spp;
+
+	public BatchRunner(BatchConfig config) {
+		this(config, AnalysisService.getDefault());
+	}
+
+	public BatchRunner(BatchConfig config, AnalysisService service) {
+		this.config = config;
+		this.service = service;
+	}
+
+	/**
+	 * Analyzes all configured files.
+	 */
+	public void run() throws IOException {
+		new File(config.output).mkdirs();
+		periodogram = open(BatchConfig.PERIODOGRAM, "periodogram.tsv",
+			"File\tActogram\tFrom day\tTo day\tPeriod (" + config.unit.abbr + ")\t" +
+			"Power\tThreshold\tSignificant");
+		onoffset = open(BatchConfig.ONOFFSET, "onoffset.tsv",
+			"File\tActogram\tDay\tOnset (" + config.unit.abbr + ")\t" +
+			"Offset (" + config.unit.abbr + ")");
+		acrophase = open(BatchConfig.ACROPHASE, "acrophase.tsv",
+			"File\tActogram\tDay\tAcrophase (" + config.unit.abbr + ")");
+		average = open(BatchConfig.AVERAGE, "average_activity.tsv",
+			"File\tActogram\tFrom day\tTo day\tTime (" + config.unit.abbr + ")\t" +
+			"Average activity");
+		fitsine = open(BatchConfig.FITSINE, "fitsine.tsv",
+			"File\tActogram\tFrom day\tTo day\ta\tb (1/" + config.unit.abbr + ")\t" +
+			"c\td\tT (" + config.unit.abbr + ")");
+		try {
+			for(String file : config.input) {
+				System.out.println("Processing " + file);
+				analyze(file, read(file));
+			}
+		} finally {
+			for(PrintWriter out : new PrintWriter[] {
+					periodogram, onoffset, acrophase, average, fitsine })
+				if(out != null)
+					out.close();
+		}
+	}
+
+	private PrintWriter open(String analysis, String name, String header) throws IOException {
+		if(!config.runs(analysis))
+			return null;
+		PrintWriter out = new PrintWriter(new FileWriter(new File(config.output, name)));
+		out.println(header);
+		return out;
+	}
+
+	ActogramGroup read(String file) throws IOException {
+		if(BinaryActogramFile.isBinaryFile(file))
+			return BinaryActogramFile.read(file, config.storage);
+		int numCols = config.numCols;
+		if(numCols < 0)
+			numCols = countColumns(file) - config.fromCol;
+		ActogramGroup group = ActogramReader.readActogramsMapped(file,
+			config.delimiter, config.fromCol, numCols,
+			config.fromLine, config.numLines,
+			config.spp, config.cal, config.unit);
+		for(int i = 0; i < group.size(); i++)
+			group.get(i).setStorageType(config.storage);
+		return group;
+	}
+
+	/**
+	 * Returns the number of columns in the first data line.
+	 */
+	private int countColumns(String file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			for(int i = 0; i < config.fromLine; i++)
+				in.readLine();
+			String line = in.readLine();
+			if(line == null)
+				return 0;
+			int n = 1;
+			for(int i = 0; i < line.length(); i++)
+				if(line.charAt(i) == config.delimiter)
+					n++;
+			return n;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the configured day ranges as sample ranges, clipped to
+	 * the given length.
+	 */
+	private int[][] getRanges(int length) {
+		if(config.days.length == 0)
+			return new int[][] { { 0, length } };
+		int[][] ranges = new int[config.days.length][];
+		for(int i = 0; i < ranges.length; i++)
+			ranges[i] = new int[] {
+				Math.min(length, config.days[i][0] * spp),
+				Math.min(length, config.days[i][1] * spp) };
+		return ranges;
+	}
+
+	private void analyze(String file, ActogramGroup group) throws IOException {
+		if(group.size() == 0)
+			return;
+		final String name = new File(file).getName();
+		List<Actogram> actograms = new ArrayList<Actogram>();
+		for(int i = 0; i < group.size(); i++)
+			actograms.add(group.get(i));
+
+		int length = Integer.MAX_VALUE;
+		for(Actogram a : actograms)
+			length = Math.min(length, a.size());
+		spp = actograms.get(0).SAMPLES_PER_PERIOD;
+		int[][] ranges = getRanges(length);
+
+		// submit everything first, then write the results in order
+		List<Pending<?>> pending = new ArrayList<Pending<?>>();
+		if(periodogram != null) {
+			BatchPeriodogram.Config pc = config.getPeriodogramConfig();
+			for(final int[] range : ranges) {
+				if(range[1] <= range[0])
+					continue;
+				pending.add(new Pending<BatchPeriodogram.Result[]>(periodogram,
+						service.periodograms(actograms, range[0], range[1], pc, null)) {
+					@Override
+					String format(BatchPeriodogram.Result[] results) {
+						return periodogram(name, results, range[0], range[1]);
+					}
+				});
+			}
+		}
+
+		for(final Actogram a : actograms) {
+			for(final int[] range : ranges) {
+				if(range[1] <= range[0])
+					continue;
+				if(onoffset != null) {
+					Future<AnalysisService.OnOffsets> f = config.onoffsetMethod != null
+						? service.onOffsets(a, range[0], range[1],
+							config.onoffsetSigma, config.onoffsetMethod)
+						: service.onOffsets(a, range[0], range[1],
+							config.onoffsetSigma, config.onoffsetThreshold);
+					pending.add(new Pending<AnalysisService.OnOffsets>(onoffset, f) {
+						@Override
+						String format(AnalysisService.OnOffsets result) {
+							return onoffset(name, a, result);
+						}
+					});
+				}
+				if(acrophase != null) {
+					pending.add(new Pending<ArrayList<Integer>>(acrophase,
+							service.acrophase(a, range[0], range[1], period(a))) {
+						@Override
+						String format(ArrayList<Integer> result) {
+							return acrophase(name, a, result);
+						}
+					});
+				}
+				if(average != null) {
+					pending.add(new Pending<AnalysisService.ActivityPattern>(average,
+							service.averageActivity(a, range[0], range[1],
+								new TimeInterval(config.averagePeriod, config.unit),
+								config.averageSigma)) {
+						@Override
+						String format(AnalysisService.ActivityPattern result) {
+							return average(name, result, range[0], range[1]);
+						}
+					});
+				}
+				if(fitsine != null) {
+					pending.add(new Pending<AnalysisService.SineFit>(fitsine,
+							service.fitSine(a, range[0], range[1])) {
+						@Override
+						String format(AnalysisService.SineFit result) {
+							return fitsine(name, a, result, range[0], range[1]);
+						}
+					});
+				}
+			}
+		}
+
+		try {
+			for(Pending<?> p : pending)
+				p.write();
+		} finally {
+			for(Pending<?> p : pending)
+				p.future.cancel(true);
+		}
+		for(PrintWriter out : new PrintWriter[] {
+				periodogram, onoffset, acrophase, average, fitsine })
+			if(out != null)
+				out.flush();
+	}
+
+	/**
+	 * A submitted analysis, and how to write its result.
+	 */
+	private static abstract class Pending<T> {
+		final PrintWriter out;
+		final Future<T> future;
+
+		Pending(PrintWriter out, Future<T> future) {
+			this.out = out;
+			this.future = future;
+		}
+
+		abstract String format(T result);
+
+		void write() throws IOException {
+			try {
+				out.print(format(future.get()));
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Analysis interrupted", e);
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				if(cause instanceof Error)
+					throw (Error)cause;
+				throw new IOException(cause);
+			}
+		}
+	}
+
+	private String day(int index) {
+		return Integer.toString(index / spp);
+	}
+
+	/** Time of the given index within its period, in calibration units. */
+	private float timeOfDay(Actogram a, int index) {
+		return (index % a.SAMPLES_PER_PERIOD) * a.interval.intervalIn(a.unit);
+	}
+
+	private static TimeInterval period(Actogram a) {
+		return new TimeInterval(a.SAMPLES_PER_PERIOD * a.interval.millis);
+	}
+
+	String periodogram(String file, BatchPeriodogram.Result[] results, int from, int to) {
+		StringBuilder b = new StringBuilder();
+		for(BatchPeriodogram.Result r : results) {
+			b.append(file).append('\t').append(r.name).append('\t')
+				.append(day(from)).append('\t').append(day(to)).append('\t')
+				.append(r.getPeakPeriod()).append('\t')
+				.append(r.getPeakPower()).append('\t')
+				.append(r.getPeakThreshold()).append('\t')
+				.append(r.hasPValues ? Boolean.toString(r.isSignificant()) : "")
+				.append('\n');
+		}
+		return b.toString();
+	}
+
+	String onoffset(String file, Actogram a, AnalysisService.OnOffsets onoff) {
+		List<Integer> on = onoff.onsets;
+		List<Integer> off = onoff.offsets;
+		StringBuilder b = new StringBuilder();
+		for(int i = 0; i < on.size(); i++) {
+			b.append(file).append('\t').append(a.name).append('\t')
+				.append(day(on.get(i))).append('\t')
+				.append(timeOfDay(a, on.get(i))).append('\t')
+				.append(timeOfDay(a, off.get(i))).append('\n');
+		}
+		return b.toString();
+	}
+
+	String acrophase(String file, Actogram a, List<Integer> pos) {
+		StringBuilder b = new StringBuilder();
+		for(int p : pos) {
+			b.append(file).append('\t').append(a.name).append('\t')
+				.append(day(p)).append('\t')
+				.append(timeOfDay(a, p)).append('\n');
+		}
+		return b.toString();
+	}
+
+	String average(String file, AnalysisService.ActivityPattern pattern, int from, int to) {
+		StringBuilder b = new StringBuilder();
+		for(int i = 0; i < pattern.values.length; i++) {
+			b.append(file).append('\t').append(pattern.name).append('\t')
+				.append(day(from)).append('\t').append(day(to)).append('\t')
+				.append(pattern.time[i]).append('\t')
+				.append(pattern.values[i]).append('\n');
+		}
+		return b.toString();
+	}
+
+	String fitsine(String file, Actogram a, AnalysisService.SineFit fit, int from, int to) {
+		double[] param = fit.param;
+		// param[1] is in radians per sample
+		float factor = a.interval.intervalIn(a.unit);
+		double w = param[1] / factor;
+		return file + "\t" + a.name + "\t" + day(from) + "\t" + day(to) + "\t" +
+			(float)param[0] + "\t" + (float)w + "\t" +
+			(float)param[2] + "\t" + (float)param[3] + "\t" +
+			(float)(2 * Math.PI / w) + "\n";
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: java -cp ... " + BatchRunner.class.getName() +
+				" config.properties [file ...]");
+			System.exit(1);
+		}
+		System.setProperty("java.awt.headless", "true");
+		Properties p = BatchConfig.load(args[0]);
+		if(args.length > 1)
+			p.setProperty("input", String.join(",",
+				Arrays.copyOfRange(args, 1, args.length)));
+		BatchConfig config = new BatchConfig(p);
+		long start = System.currentTimeMillis();
+		new BatchRunner(config).run();
+		System.out.println("Finished in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import ij.IJ;
+import actoj.util.Smoothing;
 
 /**
  * Representation of the data of one actogram.
@@ -21,7 +22,7 @@ public class Actogram {
 	/**
 	 * The raw data of this actogram.
 	 */
-	private float[] data;
+	private FloatStorage data;
 
 	/**
 	 * Measurements per period.
@@ -50,14 +51,19 @@ public class Actogram {
 	 */
 	private ArrayList<MarkerList> markers = new ArrayList<MarkerList>();
 
+	/**
+	 * The downsampled versions of this actogram for display, created
+	 * on demand.
+	 */
+	private ZoomPyramid pyramid;
+
 
 	/**
 	 * Constructur.
 	 */
 	public Actogram(String name, Actogram a) {
 		this.name = name;
-		this.data = new float[a.data.length];
-		System.arraycopy(a.data, 0, this.data, 0, a.data.length);
+		this.data = a.data.copy();
 		this.interval = a.interval;
 		this.SAMPLES_PER_PERIOD = a.SAMPLES_PER_PERIOD;
 		this.unit = a.unit;
@@ -68,6 +74,13 @@ public class Actogram {
 	 * Constructur.
 	 */
 	public Actogram(String name, float[] data, int SPP, TimeInterval interval, TimeInterval.Units unit) {
+		this(name, new HeapFloatStorage(data), SPP, interval, unit);
+	}
+
+	/**
+	 * Constructur.
+	 */
+	public Actogram(String name, FloatStorage data, int SPP, TimeInterval interval, TimeInterval.Units unit) {
 		this.name = name;
 		this.data = data;
 		this.interval = interval;
@@ -176,24 +189,86 @@ public class Actogram {
 	}
 
 	/**
-	 * Returns a reference to the data array.
+	 * Returns a reference to the data array if the data is stored on
+	 * the heap, or a copy of it otherwise. Use getStorage() or get() to
+	 * access the data without copying.
 	 */
 	public float[] getData() {
+		float[] a = data.array();
+		return a != null ? a : data.toArray();
+	}
+
+	/**
+	 * Returns the storage which holds the data.
+	 */
+	public FloatStorage getStorage() {
 		return data;
 	}
 
+	/**
+	 * Returns the zoom levels of this actogram. Prefer this over
+	 * downsample() for repeated downsampling, e.g. when zooming.
+	 */
+	public synchronized ZoomPyramid getPyramid() {
+		if(pyramid == null)
+			pyramid = new ZoomPyramid(this);
+		return pyramid;
+	}
+
+	/**
+	 * Drops the cached zoom levels and derived series after the data
+	 * has changed.
+	 */
+	synchronized void invalidateDerived() {
+		if(pyramid != null)
+			pyramid.invalidate();
+		DerivedCache.removeAll(this);
+	}
+
+	/**
+	 * Moves the data into a storage of the given type, unless it is
+	 * already stored that way.
+	 */
+	public void setStorageType(FloatStorage.Type type) {
+		if(data.getType() != type)
+			data = data.copyTo(type);
+	}
+
+	/**
+	 * Returns a read-only actogram which shows the data from index
+	 * from (inclusive) to index to (exclusive) of this actogram,
+	 * without copying it.
+	 */
+	public Actogram view(int from, int to) {
+		return new Actogram(name, data.view(from, to),
+			SAMPLES_PER_PERIOD, interval, unit);
+	}
+
+	/**
+	 * Returns a read-only actogram which shows every k-th period of this
+	 * actogram, starting with the period which starts at index from,
+	 * and ending before index to, without copying the data.
+	 */
+	public Actogram viewPeriods(int from, int to, int k) {
+		int spp = SAMPLES_PER_PERIOD;
+		int stride = k * spp;
+		int nPeriods = to - from < spp ? 0 : (to - from - spp) / stride + 1;
+		return new Actogram(name, data.view(from, spp, stride, nPeriods),
+			spp, interval, unit);
+	}
+
 	/**
 	 * Returns the data at the specified index.
 	 */
 	public float get(int idx) {
-		return data[idx];
+		return data.get(idx);
 	}
 
 	/**
 	 * Returns the size of the data array.
 	 */
 	public int size() {
-		return data.length;
+		return data.size();
 	}
 
 	/**
@@ -247,15 +322,7 @@ public class Actogram {
 		if(SAMPLES_PER_PERIOD % f != 0)
 			throw new IllegalArgumentException("Invalid zoom factor: " + f);
 
-		int newlength = data.length / f;
-		float[] newdata = new float[newlength];
-		for(int i = 0; i < newlength; i++) {
-			newdata[i] = 0;
-			int offs = f * i;
-			for(int j = 0; j < f; j++)
-				newdata[i] += data[offs + j];
-			newdata[i] /= f;
-		}
+		FloatStorage newdata = StorageMath.downsample(data, f);
 		return new Actogram(name, newdata, SAMPLES_PER_PERIOD / f, interval.mul(f), unit);
 	}
 
@@ -264,13 +331,14 @@ public class Actogram {
 		if(Math.abs(d) > 10e-6)
 			throw new IllegalArgumentException("Invalid zoom factor: " + factor);
 
-		int l = (int)Math.ceil(data.length / factor);
-		float[] newdata = new float[l];
+		int dl = data.size();
+		int l = (int)Math.ceil(dl / factor);
+		FloatStorage newdata = data.create(l);
 
-		double[] cumOld = new double[data.length + 1];
+		double[] cumOld = new double[dl + 1];
 		cumOld[0] = 0;
-		for(int i = 0; i < data.length; i++)
-			cumOld[i + 1] = cumOld[i] + data[i];
+		for(int i = 0; i < dl; i++)
+			cumOld[i + 1] = cumOld[i] + data.get(i);
 
 		double[] cumNew = new double[l + 1];
 		cumNew[0] = 0;
@@ -279,9 +347,9 @@ public class Actogram {
 			double partialOver = (newIdx + 1) * factor - uInt;
 			double c = uInt >= cumOld.length ? cumOld[cumOld.length - 1] : cumOld[uInt];
 			c -= cumNew[newIdx];
-			if(partialOver > 10e-6 && uInt < data.length)
-				c += partialOver * data[uInt];
-			newdata[newIdx] = (float)(c / factor);
+			if(partialOver > 10e-6 && uInt < dl)
+				c += partialOver * data.get(uInt);
+			newdata.set(newIdx, (float)(c / factor));
 			cumNew[newIdx + 1] = cumNew[newIdx] + c;
 		}
 
@@ -298,63 +366,30 @@ public class Actogram {
 	 */
 	public static Actogram sum(Collection<Actogram> actograms) {
 		// TODO start time?
-		int n = 0;
-		int spp = -1;
-		TimeInterval interval = null;
-		TimeInterval.Units unit = null;
-		boolean first = true;
-		for(Actogram a : actograms) {
-			// check interval
-			if(first) {
-				spp = a.SAMPLES_PER_PERIOD;
-				interval = a.interval;
-				first = false;
-				unit = a.unit;
-			}
-
-			if(a.SAMPLES_PER_PERIOD != spp)
-				throw new IllegalArgumentException("Given actograms don't have the same number of samples per period");
-			if(!a.interval.equals(interval))
-				throw new IllegalArgumentException("Given actograms don't have the same interval duration");
-			if(!a.unit.equals(unit))
-				throw new IllegalArgumentException("Given actograms don't have the same units");
-
-			int count = a.data.length;
-			if(count > n)
-				n = count;
-		}
-		float[] res = new float[n];
-		for(Actogram a : actograms) {
-			for(int i = 0; i < a.data.length; i++)
-				res[i] += a.data[i];
-		}
-		return new Actogram("#sum", res, spp, interval, unit);
+		return GroupReduction.sum(actograms);
 	}
 
 	/**
 	 * Devides each data value by the given value.
 	 */
 	public static void devide(Actogram actogram, float s) {
-		for(int i = 0; i < actogram.data.length; i++)
-			actogram.data[i] /= s;
+		StorageMath.divide(actogram.data, s);
+		actogram.invalidateDerived();
 	}
 
 	/**
 	 * Multiplies each data value with the given value.
 	 */
 	public static void multiply(Actogram actogram, float s) {
-		for(int i = 0; i < actogram.data.length; i++)
-			actogram.data[i] *= s;
+		StorageMath.multiply(actogram.data, s);
+		actogram.invalidateDerived();
 	}
 
 	/**
 	 * Calculates the sum of all data values.
 	 */
 	public static float sum(Actogram actogram) {
-		double s = 0.0;
-		for(int i = 0; i < actogram.data.length; i++)
-			s += actogram.data[i];
-		return (float)s;
+		return (float)StorageMath.sum(actogram.data);
 	}
 
 
@@ -363,29 +398,45 @@ public class Actogram {
 	 * devide(sum(actograms), actograms.size()).
 	 */
 	public static Actogram average(Collection<Actogram> actograms) {
-		Actogram res = sum(actograms);
-		devide(res, actograms.size());
-		return new Actogram("#average", res);
+		return GroupReduction.average(actograms);
 	}
 
 	/**
-	 * Convolve the actogram with the given kernel.
+	 * Returns this actogram, convolved with the given kernel, like
+	 * convolve(). The result is cached, and must not be modified.
 	 */
-	public Actogram convolve(float[] kernel) {
-		int dl = data.length;
-		int kl = kernel.length;
-
-		float[] n = new float[data.length];
+	public Actogram getSmoothed(float[] kernel) {
+		double[] params = new double[kernel.length];
+		for(int i = 0; i < kernel.length; i++)
+			params[i] = kernel[i];
+		Actogram a = DerivedCache.get(this, "convolve", params);
+		if(a == null) {
+			a = convolve(kernel);
+			DerivedCache.put(this, "convolve", params, a);
+		}
+		return a;
+	}
 
-		for(int i = 0; i < dl; i++) {
-			n[i] = 0;
-			for(int j = 0; j < kl; j++) {
-				int idx = i + j - kl/2;
-				float v = (idx < 0 || idx >= dl) ? 0 : data[idx];
-				n[i] += kernel[j] * v;
-			}
+	/**
+	 * Returns this actogram, downsampled by the given factor, like
+	 * downsample(). The result is cached, and must not be modified;
+	 * getSmoothed(kernel).getDownsampled(factor) caches both steps.
+	 */
+	public Actogram getDownsampled(double factor) {
+		double[] params = new double[] { factor };
+		Actogram a = DerivedCache.get(this, "downsample", params);
+		if(a == null) {
+			a = downsample(factor);
+			DerivedCache.put(this, "downsample", params, a);
 		}
-		return new Actogram(name + "_smoothed", n,
+		return a;
+	}
+
+	/**
+	 * Convolve the actogram with the given kernel.
+	 */
+	public Actogram convolve(float[] kernel) {
+		return new Actogram(name + "_smoothed", Smoothing.convolve(data, kernel),
 			SAMPLES_PER_PERIOD, interval, unit);
 	}
 
@@ -410,8 +461,8 @@ public class Actogram {
 			TimeInterval.Units.MINUTES);
 		a = a.downsample(1.75);
 
-		for(int i = 0; i < a.data.length; i++)
-			System.out.print(a.data[i] + " ");
+		for(int i = 0; i < a.size(); i++)
+			System.out.print(a.get(i) + " ");
 		System.out.println();
 	}
 }
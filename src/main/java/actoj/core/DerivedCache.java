@@ -0,0 +1,144 @@
+package actoj.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of series which are derived from actograms, e.g. smoothed
+ * or downsampled ones, keyed by the actogram and the parameters of the
+ * operation. It is shared by all actograms and bounded by the memory
+ * of the cached data. When an entry is dropped, the series derived
+ * from it are dropped as well. The actograms are only referenced
+ * weakly, so that the cache doesn't keep closed actograms alive.
+ */
+class DerivedCache {
+
+	private static final long MAX_BYTES = 128L << 20;
+
+	private static final LinkedHashMap<Key, Actogram> cache =
+		new LinkedHashMap<Key, Actogram>(16, 0.75f, true);
+
+	/** Where the keys of collected actograms are enqueued. */
+	private static final ReferenceQueue<Actogram> collected =
+		new ReferenceQueue<Actogram>();
+
+	private static long bytes = 0;
+
+	private DerivedCache() {}
+
+	static Actogram get(Actogram owner, String op, double[] params) {
+		ArrayList<Actogram> dropped = new ArrayList<Actogram>();
+		Actogram derived;
+		synchronized(cache) {
+			purge(dropped);
+			derived = cache.get(new Key(owner, op, params));
+		}
+		for(Actogram a : dropped)
+			removeAll(a);
+		return derived;
+	}
+
+	static void put(Actogram owner, String op, double[] params, Actogram derived) {
+		ArrayList<Actogram> dropped = new ArrayList<Actogram>();
+		synchronized(cache) {
+			purge(dropped);
+			Actogram old = cache.put(new Key(owner, op, params), derived);
+			if(old != null) {
+				bytes -= sizeOf(old);
+				dropped.add(old);
+			}
+			bytes += sizeOf(derived);
+			// keep at least the entry which was just added
+			Iterator<Actogram> it = cache.values().iterator();
+			while(bytes > MAX_BYTES && cache.size() > 1) {
+				Actogram evicted = it.next();
+				it.remove();
+				bytes -= sizeOf(evicted);
+				dropped.add(evicted);
+			}
+		}
+		for(Actogram a : dropped)
+			removeAll(a);
+	}
+
+	/**
+	 * Drops all series derived from the given actogram, directly or
+	 * indirectly.
+	 */
+	static void removeAll(Actogram owner) {
+		ArrayList<Actogram> dropped = new ArrayList<Actogram>();
+		synchronized(cache) {
+			Iterator<Map.Entry<Key, Actogram>> it = cache.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<Key, Actogram> e = it.next();
+				if(e.getKey().owner.get() == owner) {
+					bytes -= sizeOf(e.getValue());
+					dropped.add(e.getValue());
+					it.remove();
+				}
+			}
+		}
+		for(Actogram a : dropped)
+			removeAll(a);
+	}
+
+	/**
+	 * Removes the entries of actograms which were garbage collected,
+	 * and adds the removed series to dropped. Must be called with the
+	 * lock on cache.
+	 */
+	private static void purge(ArrayList<Actogram> dropped) {
+		if(collected.poll() == null)
+			return;
+		while(collected.poll() != null)
+			;
+		Iterator<Map.Entry<Key, Actogram>> it = cache.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Key, Actogram> e = it.next();
+			if(e.getKey().owner.get() == null) {
+				bytes -= sizeOf(e.getValue());
+				dropped.add(e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	private static long sizeOf(Actogram a) {
+		return 4L * a.size();
+	}
+
+	private static final class Key {
+		final WeakReference<Actogram> owner;
+		final String op;
+		final double[] params;
+		private final int hash;
+
+		Key(Actogram owner, String op, double[] params) {
+			this.owner = new WeakReference<Actogram>(owner, collected);
+			this.op = op;
+			this.params = params;
+			this.hash = 31 * (31 * System.identityHashCode(owner) + op.hashCode()) +
+				Arrays.hashCode(params);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			Actogram a = owner.get();
+			return a != null && k.owner.get() == a && k.op.equals(op) &&
+				Arrays.equals(k.params, params);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
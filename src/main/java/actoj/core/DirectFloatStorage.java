@@ -0,0 +1,67 @@
+package actoj.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * FloatStorage backed by a direct ByteBuffer, i.e. outside the Java
+ * heap. Direct memory is not scanned or moved by the garbage collector,
+ * and its maximum size is configured independently of the heap, with
+ * -XX:MaxDirectMemorySize.
+ */
+public class DirectFloatStorage extends FloatStorage {
+
+	/** The values; replaced by MappedFloatStorage on the first write. */
+	FloatBuffer data;
+
+	/**
+	 * Constructor; creates a zero-filled storage.
+	 */
+	public DirectFloatStorage(int size) {
+		this(ByteBuffer.allocateDirect(4 * size)
+			.order(ByteOrder.nativeOrder())
+			.asFloatBuffer());
+	}
+
+	/**
+	 * Constructor; wraps the given buffer.
+	 */
+	DirectFloatStorage(FloatBuffer data) {
+		this.data = data;
+	}
+
+	@Override
+	public Type getType() {
+		return Type.Direct;
+	}
+
+	@Override
+	public int size() {
+		return data.capacity();
+	}
+
+	@Override
+	public float get(int idx) {
+		return data.get(idx);
+	}
+
+	@Override
+	public void set(int idx, float v) {
+		data.put(idx, v);
+	}
+
+	@Override
+	public void get(int from, float[] dst, int offs, int len) {
+		FloatBuffer b = data.duplicate();
+		b.position(from);
+		b.get(dst, offs, len);
+	}
+
+	@Override
+	public void set(int from, float[] src, int offs, int len) {
+		FloatBuffer b = data.duplicate();
+		b.position(from);
+		b.put(src, offs, len);
+	}
+}
@@ -0,0 +1,138 @@
+package actoj.core;
+
+/**
+ * Storage for the samples of an actogram.
+ *
+ * Actograms keep their data in a FloatStorage instead of a plain float
+ * array, so that large recordings can be held outside the Java heap,
+ * either in direct memory or in a memory-mapped file. Derived data
+ * (downsampled, smoothed, summed actograms) is created with create(),
+ * and thus stays in the same kind of storage as its source.
+ */
+public abstract class FloatStorage {
+
+	/**
+	 * The available kinds of storage.
+	 */
+	public static enum Type {
+		Heap {
+			@Override
+			public FloatStorage create(int size) {
+				return new HeapFloatStorage(size);
+			}
+		},
+		Direct {
+			@Override
+			public FloatStorage create(int size) {
+				return new DirectFloatStorage(size);
+			}
+		},
+		Mapped {
+			@Override
+			public FloatStorage create(int size) {
+				return new MappedFloatStorage(size);
+			}
+		};
+
+		/**
+		 * Creates a new, zero-filled storage of this type.
+		 */
+		public abstract FloatStorage create(int size);
+	}
+
+	/**
+	 * Returns the type of this storage.
+	 */
+	public abstract Type getType();
+
+	/**
+	 * Returns the number of values.
+	 */
+	public abstract int size();
+
+	/**
+	 * Returns the value at the specified index.
+	 */
+	public abstract float get(int idx);
+
+	/**
+	 * Sets the value at the specified index.
+	 */
+	public abstract void set(int idx, float v);
+
+	/**
+	 * Copies len values, starting at index from, into dst.
+	 */
+	public abstract void get(int from, float[] dst, int offs, int len);
+
+	/**
+	 * Copies len values from src into this storage, starting at index from.
+	 */
+	public abstract void set(int from, float[] src, int offs, int len);
+
+	/**
+	 * Returns the backing array if the values are stored in a float
+	 * array on the heap, or null otherwise.
+	 */
+	public float[] array() {
+		return null;
+	}
+
+	/**
+	 * Creates a new, zero-filled storage of the same type.
+	 */
+	public FloatStorage create(int size) {
+		return getType().create(size);
+	}
+
+	/**
+	 * Returns a read-only view on the values from index from (inclusive)
+	 * to index to (exclusive), without copying them.
+	 */
+	public FloatStorage view(int from, int to) {
+		return new FloatStorageView(this, from, to - from, to - from, 1);
+	}
+
+	/**
+	 * Returns a read-only view on nBlocks blocks of blockLength values,
+	 * the first starting at index from and each following one
+	 * blockStride values after its predecessor, without copying them.
+	 */
+	public FloatStorage view(int from, int blockLength, int blockStride, int nBlocks) {
+		return new FloatStorageView(this, from, blockLength, blockStride, nBlocks);
+	}
+
+	/**
+	 * Returns a copy of this storage, of the same type.
+	 */
+	public FloatStorage copy() {
+		return copyTo(getType());
+	}
+
+	/**
+	 * Returns a copy of this storage, of the given type.
+	 */
+	public FloatStorage copyTo(Type type) {
+		int n = size();
+		FloatStorage ret = type.create(n);
+		float[] buf = new float[Math.min(n, TRANSFER_SIZE)];
+		for(int i = 0; i < n; i += buf.length) {
+			int len = Math.min(buf.length, n - i);
+			get(i, buf, 0, len);
+			ret.set(i, buf, 0, len);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the values as a new float array.
+	 */
+	public float[] toArray() {
+		float[] ret = new float[size()];
+		get(0, ret, 0, ret.length);
+		return ret;
+	}
+
+	/** The number of values which are transferred at once by copyTo(). */
+	private static final int TRANSFER_SIZE = 1 << 14;
+}
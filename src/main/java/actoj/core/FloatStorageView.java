@@ -0,0 +1,94 @@
+package actoj.core;
+
+/**
+ * Read-only view on a FloatStorage, which selects nBlocks blocks of
+ * blockLength values each, the first starting at offset, and each
+ * following one blockStride values after its predecessor. A contiguous
+ * sub-range is a single block; every k-th period of an actogram is a
+ * block of SAMPLES_PER_PERIOD values with a stride of k periods.
+ *
+ * The values are not copied; changes of the underlying storage are
+ * visible through the view.
+ */
+class FloatStorageView extends FloatStorage {
+
+	private final FloatStorage base;
+	private final int offset;
+	private final int blockLength;
+	private final int blockStride;
+	private final int size;
+
+	FloatStorageView(FloatStorage base, int offset,
+			int blockLength, int blockStride, int nBlocks) {
+		if(offset < 0 || blockLength < 0 || nBlocks < 0
+				|| (nBlocks > 0 && offset + (long)(nBlocks - 1) * blockStride
+					+ blockLength > base.size()))
+			throw new IndexOutOfBoundsException("View exceeds the data");
+		this.base = base;
+		this.offset = offset;
+		this.blockLength = blockLength;
+		this.blockStride = blockStride;
+		this.size = nBlocks * blockLength;
+	}
+
+	private boolean isContiguous() {
+		return blockLength == blockStride || size == blockLength;
+	}
+
+	@Override
+	public Type getType() {
+		return base.getType();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public float get(int idx) {
+		if(idx < 0 || idx >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(idx));
+		if(blockLength == blockStride)
+			return base.get(offset + idx);
+		return base.get(offset + (idx / blockLength) * blockStride + idx % blockLength);
+	}
+
+	@Override
+	public void get(int from, float[] dst, int offs, int len) {
+		if(from < 0 || from + len > size)
+			throw new IndexOutOfBoundsException(from + ", " + len);
+		if(isContiguous()) {
+			base.get(offset + from, dst, offs, len);
+			return;
+		}
+		while(len > 0) {
+			int inBlock = from % blockLength;
+			int n = Math.min(len, blockLength - inBlock);
+			base.get(offset + (from / blockLength) * blockStride + inBlock, dst, offs, n);
+			from += n;
+			offs += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void set(int idx, float v) {
+		throw new UnsupportedOperationException("View is read-only");
+	}
+
+	@Override
+	public void set(int from, float[] src, int offs, int len) {
+		throw new UnsupportedOperationException("View is read-only");
+	}
+
+	@Override
+	public FloatStorage view(int from, int to) {
+		if(from < 0 || to > size || from > to)
+			throw new IndexOutOfBoundsException(from + ", " + to);
+		// views on contiguous views refer to the base directly
+		if(isContiguous())
+			return base.view(offset + from, offset + to);
+		return super.view(from, to);
+	}
+}
@@ -0,0 +1,536 @@
+package actoj.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Combines a group of actograms sample by sample, e.g. into their sum or
+ * average.
+ *
+ * The time axis is split into blocks which fit into the cache, and all
+ * actograms are combined block by block, instead of streaming the whole
+ * result once per actogram. The blocks are processed in parallel on the
+ * common ForkJoinPool. Sums are accumulated with Kahan summation, so
+ * that the result doesn't lose precision for large groups.
+ *
+ * All actograms must agree in SAMPLES_PER_PERIOD, interval and unit.
+ * The result is as long as the longest actogram, and is stored in the
+ * storage type of the first one. sum() and the averages treat missing
+ * samples of shorter actograms as zero, like Actogram.sum() always did;
+ * median(), trimmedMean() and statistics() only use the actograms which
+ * contain the sample.
+ */
+public class GroupReduction {
+
+	/** Samples per block for the sums. */
+	private static final int BLOCK = 1 << 12;
+
+	/** Values per block, over all actograms, for the order statistics. */
+	private static final int COLUMN_VALUES = 1 << 16;
+
+	/** Number of chunks per thread, to balance the load. */
+	private static final int CHUNKS_PER_THREAD = 8;
+
+	private GroupReduction() {}
+
+	/**
+	 * Calculates the sum of the specified actograms.
+	 * @throws IllegalArgumentException if the given actograms don't agree in
+	 *         SAMPLES_PER_PERIOD, interval and interval unit.
+	 */
+	public static Actogram sum(Collection<Actogram> actograms) {
+		Actogram[] a = check(actograms);
+		return weighted("#sum", a, null, 1);
+	}
+
+	/**
+	 * Calculates the average of the specified actograms.
+	 * @throws IllegalArgumentException if the given actograms don't agree in
+	 *         SAMPLES_PER_PERIOD, interval and interval unit.
+	 */
+	public static Actogram average(Collection<Actogram> actograms) {
+		Actogram[] a = check(actograms);
+		return weighted("#average", a, null, a.length);
+	}
+
+	/**
+	 * Calculates sum(weights[i] * actogram[i]) / sum(weights), with the
+	 * weights in the iteration order of the actograms.
+	 * @throws IllegalArgumentException if the given actograms don't agree in
+	 *         SAMPLES_PER_PERIOD, interval and interval unit, if the
+	 *         number of weights doesn't match, or the weights sum up to 0.
+	 */
+	public static Actogram weightedAverage(Collection<Actogram> actograms, float[] weights) {
+		Actogram[] a = check(actograms);
+		if(weights.length != a.length)
+			throw new IllegalArgumentException("Expected " + a.length + " weights, but got " + weights.length);
+		double total = 0;
+		for(float w : weights)
+			total += w;
+		if(total == 0)
+			throw new IllegalArgumentException("The weights sum up to 0");
+		return weighted("#weighted average", a, weights, (float)total);
+	}
+
+	/**
+	 * Calculates the median of the specified actograms, the mean of the
+	 * two middle values for an even number of values.
+	 * @throws IllegalArgumentException if the given actograms don't agree in
+	 *         SAMPLES_PER_PERIOD, interval and interval unit.
+	 */
+	public static Actogram median(Collection<Actogram> actograms) {
+		Actogram[] a = check(actograms);
+		// trimming all but the middle one or two values
+		return ordered("#median", a, 0.5);
+	}
+
+	/**
+	 * Calculates the mean of the specified actograms, without the
+	 * fraction (0 - 0.5) of smallest and largest values, at each sample.
+	 * At least the middle one or two values are kept.
+	 * @throws IllegalArgumentException if the given actograms don't agree in
+	 *         SAMPLES_PER_PERIOD, interval and interval unit, or the
+	 *         fraction is out of range.
+	 */
+	public static Actogram trimmedMean(Collection<Actogram> actograms, double fraction) {
+		if(fraction < 0 || fraction > 0.5)
+			throw new IllegalArgumentException("The trimmed fraction must be between 0 and 0.5");
+		Actogram[] a = check(actograms);
+		return ordered("#trimmed mean", a, fraction);
+	}
+
+	/**
+	 * Mean, standard error of the mean and quartiles of a group of
+	 * actograms, at each sample.
+	 */
+	public static class Statistics {
+		public final Actogram mean;
+		public final Actogram sem;
+		public final Actogram median;
+		public final Actogram lowerQuartile;
+		public final Actogram upperQuartile;
+
+		Statistics(Actogram[] a) {
+			this.mean = a[0];
+			this.sem = a[1];
+			this.median = a[2];
+			this.lowerQuartile = a[3];
+			this.upperQuartile = a[4];
+		}
+
+		/**
+		 * Returns all statistics, in the order in which they are
+		 * declared.
+		 */
+		public Actogram[] toArray() {
+			return new Actogram[] { mean, sem, median, lowerQuartile, upperQuartile };
+		}
+	}
+
+	/**
+	 * Calculates the mean, the standard error of the mean, the median
+	 * and the quartiles of the specified actograms, in one pass over the
+	 * data. Only the actograms which contain a sample are used for it.
+	 * The quartiles are interpolated linearly between the closest ranks.
+	 * @throws IllegalArgumentException if the given actograms don't agree in
+	 *         SAMPLES_PER_PERIOD, interval and interval unit.
+	 */
+	public static Statistics statistics(Collection<Actogram> actograms) {
+		Actogram[] a = check(actograms);
+		Reduction r = new Summary(a);
+		return new Statistics(r.run(new String[] {
+			"#mean", "#SEM", "#median", "#lower quartile", "#upper quartile"
+		}, columnBlock(a.length)));
+	}
+
+	/**
+	 * Returns the actograms as an array, after checking that they are
+	 * compatible.
+	 */
+	private static Actogram[] check(Collection<Actogram> actograms) {
+		Actogram[] a = actograms.toArray(new Actogram[actograms.size()]);
+		for(int i = 1; i < a.length; i++) {
+			if(a[i].SAMPLES_PER_PERIOD != a[0].SAMPLES_PER_PERIOD)
+				throw new IllegalArgumentException("Given actograms don't have the same number of samples per period");
+			if(!a[i].interval.equals(a[0].interval))
+				throw new IllegalArgumentException("Given actograms don't have the same interval duration");
+			if(!a[i].unit.equals(a[0].unit))
+				throw new IllegalArgumentException("Given actograms don't have the same units");
+		}
+		return a;
+	}
+
+	private static Actogram weighted(String name, Actogram[] a, float[] weights, float divisor) {
+		Reduction r = new Weighted(a, weights, divisor);
+		return r.run(new String[] { name }, BLOCK)[0];
+	}
+
+	private static Actogram ordered(String name, Actogram[] a, double fraction) {
+		Reduction r = new Trimmed(a, fraction);
+		return r.run(new String[] { name }, columnBlock(a.length))[0];
+	}
+
+	/**
+	 * Returns the number of samples per block for the order statistics
+	 * of the given number of actograms.
+	 */
+	private static int columnBlock(int nActograms) {
+		return Math.max(1, COLUMN_VALUES / Math.max(1, nActograms));
+	}
+
+	/**
+	 * Combines the samples from, inclusive, to to, exclusive, of all
+	 * actograms into one or more results.
+	 */
+	private static abstract class Reduction {
+		final Actogram[] actograms;
+		final FloatStorage[] data;
+		final int n;
+		FloatStorage[] results;
+
+		Reduction(Actogram[] actograms) {
+			this.actograms = actograms;
+			this.data = new FloatStorage[actograms.length];
+			int n = 0;
+			for(int i = 0; i < actograms.length; i++) {
+				data[i] = actograms[i].getStorage();
+				n = Math.max(n, data[i].size());
+			}
+			this.n = n;
+		}
+
+		abstract void reduce(int from, int to);
+
+		/**
+		 * Returns the results, one for each of the given names.
+		 */
+		Actogram[] run(String[] names, int block) {
+			Actogram[] res = new Actogram[names.length];
+			if(actograms.length == 0) {
+				for(int r = 0; r < names.length; r++)
+					res[r] = new Actogram(names[r], new HeapFloatStorage(0), -1, null, null);
+				return res;
+			}
+			results = new FloatStorage[names.length];
+			for(int r = 0; r < names.length; r++)
+				results[r] = data[0].getType().create(n);
+
+			int parallelism = ForkJoinPool.getCommonPoolParallelism();
+			int nBlocks = (n + block - 1) / block;
+			int chunk = Math.max(1, nBlocks / (parallelism * CHUNKS_PER_THREAD)) * block;
+			Range task = new Range(this, 0, n, chunk);
+			if(ForkJoinTask.inForkJoinPool())
+				task.invoke();
+			else
+				ForkJoinPool.commonPool().invoke(task);
+
+			Actogram t = actograms[0];
+			for(int r = 0; r < names.length; r++)
+				res[r] = new Actogram(names[r], results[r], t.SAMPLES_PER_PERIOD, t.interval, t.unit);
+			return res;
+		}
+
+		/**
+		 * Returns how many of the len samples starting at from are
+		 * contained in the given actogram.
+		 */
+		int available(int actogram, int from, int len) {
+			return Math.max(0, Math.min(len, data[actogram].size() - from));
+		}
+	}
+
+	private static final class Weighted extends Reduction {
+		private final float[] weights;
+		private final float divisor;
+
+		Weighted(Actogram[] actograms, float[] weights, float divisor) {
+			super(actograms);
+			this.weights = weights;
+			this.divisor = divisor;
+		}
+
+		@Override
+		void reduce(int from, int to) {
+			int block = Math.min(BLOCK, to - from);
+			float[] buf = new float[block];
+			float[] sum = new float[block];
+			float[] comp = new float[block];
+			for(int o = from; o < to; o += block) {
+				int len = Math.min(block, to - o);
+				Arrays.fill(sum, 0, len, 0);
+				Arrays.fill(comp, 0, len, 0);
+				for(int k = 0; k < data.length; k++) {
+					int avail = available(k, o, len);
+					if(avail == 0)
+						continue;
+					data[k].get(o, buf, 0, avail);
+					float w = weights == null ? 1 : weights[k];
+					for(int i = 0; i < avail; i++) {
+						float y = w * buf[i] - comp[i];
+						float t = sum[i] + y;
+						comp[i] = (t - sum[i]) - y;
+						sum[i] = t;
+					}
+				}
+				if(divisor != 1)
+					for(int i = 0; i < len; i++)
+						sum[i] /= divisor;
+				results[0].set(o, sum, 0, len);
+			}
+		}
+	}
+
+	/**
+	 * Reduces the values of all actograms which contain a sample, one
+	 * sample after the other.
+	 */
+	private static abstract class ColumnReduction extends Reduction {
+
+		ColumnReduction(Actogram[] actograms) {
+			super(actograms);
+		}
+
+		/**
+		 * Calculates res[r][i] for all results r from the m values in
+		 * column, which may be reordered.
+		 */
+		abstract void reduce(float[] column, int m, float[][] res, int i);
+
+		@Override
+		void reduce(int from, int to) {
+			int nA = data.length;
+			int block = Math.min(columnBlock(nA), to - from);
+			// the block of actogram k starts at k * block
+			float[] values = new float[nA * block];
+			int[] avail = new int[nA];
+			float[] column = new float[nA];
+			float[][] res = new float[results.length][block];
+			for(int o = from; o < to; o += block) {
+				int len = Math.min(block, to - o);
+				for(int k = 0; k < nA; k++) {
+					avail[k] = available(k, o, len);
+					if(avail[k] > 0)
+						data[k].get(o, values, k * block, avail[k]);
+				}
+				for(int i = 0; i < len; i++) {
+					int m = 0;
+					for(int k = 0; k < nA; k++)
+						if(i < avail[k])
+							column[m++] = values[k * block + i];
+					reduce(column, m, res, i);
+				}
+				for(int r = 0; r < results.length; r++)
+					results[r].set(o, res[r], 0, len);
+			}
+		}
+	}
+
+	private static final class Trimmed extends ColumnReduction {
+		private final double fraction;
+
+		Trimmed(Actogram[] actograms, double fraction) {
+			super(actograms);
+			this.fraction = fraction;
+		}
+
+		@Override
+		void reduce(float[] column, int m, float[][] res, int i) {
+			res[0][i] = trimmedMean(column, m, fraction);
+		}
+
+		/**
+		 * Returns the mean of v[0, m) without the fraction of smallest
+		 * and largest values. Reorders v.
+		 */
+		private static float trimmedMean(float[] v, int m, double fraction) {
+			int drop = Math.min((int)(fraction * m), (m - 1) / 2);
+			if(drop > 0) {
+				// v[drop, m - drop) are the middle values afterwards
+				select(v, 0, m, drop);
+				select(v, drop, m, m - drop - 1);
+			}
+			float sum = 0, comp = 0;
+			for(int i = drop; i < m - drop; i++) {
+				float y = v[i] - comp;
+				float t = sum + y;
+				comp = (t - sum) - y;
+				sum = t;
+			}
+			return sum / (m - 2 * drop);
+		}
+	}
+
+	private static final class Summary extends ColumnReduction {
+
+		Summary(Actogram[] actograms) {
+			super(actograms);
+		}
+
+		@Override
+		void reduce(float[] v, int m, float[][] res, int i) {
+			double sum = 0;
+			for(int j = 0; j < m; j++)
+				sum += v[j];
+			double mean = sum / m;
+			double ss = 0;
+			for(int j = 0; j < m; j++) {
+				double d = v[j] - mean;
+				ss += d * d;
+			}
+			res[0][i] = (float)mean;
+			res[1][i] = m > 1 ? (float)Math.sqrt(ss / (m - 1) / m) : 0;
+
+			// each selection leaves the larger values behind its rank,
+			// so the next one only needs to look at those
+			res[3][i] = quantile(v, 0, m, 0.25);
+			res[2][i] = quantile(v, (int)((m - 1) * 0.25), m, 0.5);
+			res[4][i] = quantile(v, (int)((m - 1) * 0.5), m, 0.75);
+		}
+
+		/**
+		 * Returns the p-quantile of v[0, m), given that v[0, from)
+		 * holds only values which are not larger than it. Reorders v.
+		 */
+		private static float quantile(float[] v, int from, int m, double p) {
+			double h = (m - 1) * p;
+			int lo = (int)h;
+			select(v, from, m, lo);
+			float x = v[lo];
+			if(h > lo) {
+				// the next rank is the smallest of the values behind lo
+				float next = v[lo + 1];
+				for(int j = lo + 2; j < m; j++)
+					next = Math.min(next, v[j]);
+				x += (float)(h - lo) * (next - x);
+			}
+			return x;
+		}
+	}
+
+	/**
+	 * Reorders v[from, to) so that v[k] holds the value which it would
+	 * hold if the range was sorted, with no larger values before and no
+	 * smaller values after it (quickselect, in linear expected time).
+	 */
+	static void select(float[] v, int from, int to, int k) {
+		int lo = from, hi = to - 1;
+		while(lo < hi) {
+			// median of three, which also keeps i and j in range
+			float a = v[lo], b = v[(lo + hi) >>> 1], c = v[hi];
+			float pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(v[i] < pivot)
+					i++;
+				while(v[j] > pivot)
+					j--;
+				if(i <= j) {
+					float tmp = v[i];
+					v[i++] = v[j];
+					v[j--] = tmp;
+				}
+			}
+			if(k <= j)
+				hi = j;
+			else if(k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Splits a range of samples until it is not larger than chunk, and
+	 * reduces the chunks.
+	 */
+	@SuppressWarnings("serial")
+	private static final class Range extends RecursiveAction {
+		private final Reduction reduction;
+		private final int from, to, chunk;
+
+		Range(Reduction reduction, int from, int to, int chunk) {
+			this.reduction = reduction;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= chunk) {
+				reduction.reduce(from, to);
+				return;
+			}
+			// split at a multiple of chunk, to keep the blocks aligned
+			int mid = from + ((to - from) / chunk / 2) * chunk;
+			if(mid == from)
+				mid += chunk;
+			invokeAll(
+				new Range(reduction, from, mid, chunk),
+				new Range(reduction, mid, to, chunk));
+		}
+	}
+
+	/**
+	 * Compares the run time and the accuracy of sum() with summing one
+	 * actogram after the other, and reports the time of median() and
+	 * statistics(), for the given number of actograms
+	 * (default 96) of 100800 samples (70 days at 1 sample per minute).
+	 */
+	public static void main(String[] args) {
+		int nActograms = args.length > 0 ? Integer.parseInt(args[0]) : 96;
+		int n = 70 * 1440;
+		Random rand = new Random(42);
+		ArrayList<Actogram> actograms = new ArrayList<Actogram>();
+		double[] exact = new double[n];
+		for(int k = 0; k < nActograms; k++) {
+			float[] d = new float[n];
+			for(int i = 0; i < n; i++) {
+				d[i] = rand.nextFloat() * 100;
+				exact[i] += d[i];
+			}
+			actograms.add(new Actogram("a" + k, d, 1440,
+				new TimeInterval(1, TimeInterval.Units.MINUTES),
+				TimeInterval.Units.MINUTES));
+		}
+
+		for(int r = 0; r < 5; r++) {
+			long start = System.nanoTime();
+			float[] seq = new float[n];
+			for(Actogram a : actograms) {
+				FloatStorage d = a.getStorage();
+				for(int i = 0; i < n; i++)
+					seq[i] += d.get(i);
+			}
+			long t1 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Actogram sum = sum(actograms);
+			long t2 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Actogram median = median(actograms);
+			long t3 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			statistics(actograms);
+			long t4 = System.nanoTime() - start;
+
+			double e1 = 0, e2 = 0;
+			for(int i = 0; i < n; i++) {
+				e1 = Math.max(e1, Math.abs(seq[i] - exact[i]));
+				e2 = Math.max(e2, Math.abs(sum.get(i) - exact[i]));
+			}
+			System.out.printf("sum: sequential %.1f ms (max. error %.2e), " +
+				"blocked %.1f ms (max. error %.2e); median %.1f ms (%d); " +
+				"statistics %.1f ms%n",
+				t1 * 1e-6, e1, t2 * 1e-6, e2, t3 * 1e-6, median.size(),
+				t4 * 1e-6);
+		}
+	}
+}
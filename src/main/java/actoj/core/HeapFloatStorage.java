@@ -0,0 +1,58 @@
+package actoj.core;
+
+/**
+ * FloatStorage backed by a float array on the heap.
+ */
+public class HeapFloatStorage extends FloatStorage {
+
+	private final float[] data;
+
+	/**
+	 * Constructor; creates a zero-filled storage.
+	 */
+	public HeapFloatStorage(int size) {
+		this(new float[size]);
+	}
+
+	/**
+	 * Constructor; wraps the given array without copying it.
+	 */
+	public HeapFloatStorage(float[] data) {
+		this.data = data;
+	}
+
+	@Override
+	public Type getType() {
+		return Type.Heap;
+	}
+
+	@Override
+	public int size() {
+		return data.length;
+	}
+
+	@Override
+	public float get(int idx) {
+		return data[idx];
+	}
+
+	@Override
+	public void set(int idx, float v) {
+		data[idx] = v;
+	}
+
+	@Override
+	public void get(int from, float[] dst, int offs, int len) {
+		System.arraycopy(data, from, dst, offs, len);
+	}
+
+	@Override
+	public void set(int from, float[] src, int offs, int len) {
+		System.arraycopy(src, offs, data, from, len);
+	}
+
+	@Override
+	public float[] array() {
+		return data;
+	}
+}
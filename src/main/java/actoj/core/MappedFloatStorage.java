@@ -0,0 +1,135 @@
+package actoj.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * FloatStorage backed by a memory-mapped file. The operating system
+ * pages the data in and out as needed, so that the size of all open
+ * actograms is limited by the disk space rather than by the heap.
+ *
+ * New storages are mapped from temporary files, which are deleted right
+ * after mapping; the mapping stays valid, and the disk space is freed
+ * when the buffer is unmapped. Where a mapped file can't be deleted
+ * (Windows), it is deleted after the buffer was garbage collected, or
+ * when the JVM exits. Existing files are mapped read-only; the first write
+ * copies the values to a temporary file, so that modifications never
+ * reach the original file.
+ */
+public class MappedFloatStorage extends DirectFloatStorage {
+
+	/** Temporary files which could not be deleted while mapped. */
+	private static final HashMap<Reference<?>, File> undeleted =
+		new HashMap<Reference<?>, File>();
+
+	private static final ReferenceQueue<Object> unmapped =
+		new ReferenceQueue<Object>();
+
+	/**
+	 * Constructor; maps a new, zero-filled temporary file.
+	 */
+	public MappedFloatStorage(int size) {
+		super(mapTemporary(size));
+	}
+
+	/**
+	 * Constructor; maps size floats, starting at offset, from the
+	 * specified file.
+	 * @param order The byte order of the values in the file.
+	 */
+	public MappedFloatStorage(String file, long offset, int size, ByteOrder order) throws IOException {
+		super(map(new RandomAccessFile(file, "r"),
+			FileChannel.MapMode.READ_ONLY, offset, size, order));
+	}
+
+	@Override
+	public Type getType() {
+		return Type.Mapped;
+	}
+
+	@Override
+	public void set(int idx, float v) {
+		makeWritable();
+		super.set(idx, v);
+	}
+
+	@Override
+	public void set(int from, float[] src, int offs, int len) {
+		makeWritable();
+		super.set(from, src, offs, len);
+	}
+
+	private void makeWritable() {
+		if(data.isReadOnly())
+			data = ((DirectFloatStorage)copy()).data;
+	}
+
+	private static FloatBuffer mapTemporary(int size) {
+		deleteUnmapped();
+		File f = null;
+		try {
+			f = File.createTempFile("actoj", ".data");
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(4L * size);
+			} catch(IOException e) {
+				raf.close();
+				throw e;
+			}
+			FloatBuffer buf = map(raf, FileChannel.MapMode.READ_WRITE,
+				0, size, ByteOrder.nativeOrder());
+			if(!f.delete()) {
+				f.deleteOnExit();
+				synchronized(undeleted) {
+					undeleted.put(new PhantomReference<Object>(buf, unmapped), f);
+				}
+			}
+			return buf;
+		} catch(IOException e) {
+			if(f != null)
+				f.delete();
+			throw new RuntimeException("Cannot create mapped storage", e);
+		}
+	}
+
+	/**
+	 * Deletes the temporary files whose buffers were garbage collected.
+	 */
+	private static void deleteUnmapped() {
+		Reference<?> ref;
+		while((ref = unmapped.poll()) != null) {
+			File f;
+			synchronized(undeleted) {
+				f = undeleted.remove(ref);
+			}
+			if(f != null)
+				f.delete();
+		}
+	}
+
+	private static FloatBuffer map(RandomAccessFile raf,
+			FileChannel.MapMode mode, long offset, int size,
+			ByteOrder order) throws IOException {
+		if(4L * size > Integer.MAX_VALUE) {
+			raf.close();
+			throw new IllegalArgumentException(
+				"Too many values for a mapped storage: " + size);
+		}
+		try {
+			// the mapping stays valid after the file is closed
+			MappedByteBuffer buf = raf.getChannel().map(mode, offset, 4L * size);
+			return buf.order(order).asFloatBuffer();
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -132,6 +132,11 @@ public class MarkerList implements Iterable<Integer> {
 		return regression;
 	}
 
+	public void setRegression(RegressionLine regression) {
+		this.regression = regression;
+		fireMarkerChanged();
+	}
+
 	public void calculateRegressionOld(TimeInterval T) {
 
 		@SuppressWarnings("unused")
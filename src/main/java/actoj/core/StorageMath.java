@@ -0,0 +1,194 @@
+package actoj.core;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Element-wise arithmetic on FloatStorages. Heap storages are processed
+ * in their backing array, all others in blocks which are copied with
+ * the bulk get() and set(), instead of calling get() and set() per
+ * value, which is what makes the non-heap storages faster.
+ *
+ * Unless noted otherwise, the results are identical to the ones of the
+ * straightforward loops.
+ */
+final class StorageMath {
+
+	/** The number of values which are processed at once. */
+	private static final int BLOCK = 1 << 13;
+
+	private StorageMath() {}
+
+	/**
+	 * Multiplies all values with s.
+	 */
+	static void multiply(FloatStorage data, float s) {
+		float[] a = data.array();
+		if(a != null) {
+			multiply(a, s, a.length);
+			return;
+		}
+		int n = data.size();
+		float[] b = new float[Math.min(n, BLOCK)];
+		for(int o = 0; o < n; o += BLOCK) {
+			int len = Math.min(BLOCK, n - o);
+			data.get(o, b, 0, len);
+			multiply(b, s, len);
+			data.set(o, b, 0, len);
+		}
+	}
+
+	/**
+	 * Divides all values by s (not multiplying with 1 / s, which would
+	 * round differently).
+	 */
+	static void divide(FloatStorage data, float s) {
+		float[] a = data.array();
+		if(a != null) {
+			divide(a, s, a.length);
+			return;
+		}
+		int n = data.size();
+		float[] b = new float[Math.min(n, BLOCK)];
+		for(int o = 0; o < n; o += BLOCK) {
+			int len = Math.min(BLOCK, n - o);
+			data.get(o, b, 0, len);
+			divide(b, s, len);
+			data.set(o, b, 0, len);
+		}
+	}
+
+	/**
+	 * Returns the sum of all values. Four partial sums are accumulated
+	 * in double precision, so the result may differ from a sequential
+	 * sum in the last bits of the double.
+	 */
+	static double sum(FloatStorage data) {
+		float[] a = data.array();
+		if(a != null)
+			return sum(a, a.length);
+		int n = data.size();
+		float[] b = new float[Math.min(n, BLOCK)];
+		double s = 0;
+		for(int o = 0; o < n; o += BLOCK) {
+			int len = Math.min(BLOCK, n - o);
+			data.get(o, b, 0, len);
+			s += sum(b, len);
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the averages of consecutive groups of f values, summed in
+	 * the same order as before, in a new storage of the same type.
+	 */
+	static FloatStorage downsample(FloatStorage data, int f) {
+		int newlength = data.size() / f;
+		FloatStorage res = data.create(newlength);
+		// a multiple of f, so that no group spans two blocks
+		int inBlock = Math.max(1, BLOCK / f) * f;
+		float[] in = new float[Math.min(newlength * f, inBlock)];
+		float[] out = new float[in.length / f];
+		for(int o = 0; o < newlength; o += out.length) {
+			int len = Math.min(out.length, newlength - o);
+			data.get(o * f, in, 0, len * f);
+			downsample(in, out, f, len);
+			res.set(o, out, 0, len);
+		}
+		return res;
+	}
+
+	private static void multiply(float[] a, float s, int n) {
+		for(int i = 0; i < n; i++)
+			a[i] *= s;
+	}
+
+	private static void divide(float[] a, float s, int n) {
+		for(int i = 0; i < n; i++)
+			a[i] /= s;
+	}
+
+	private static double sum(float[] a, int n) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for(; i + 3 < n; i += 4) {
+			s0 += a[i];
+			s1 += a[i + 1];
+			s2 += a[i + 2];
+			s3 += a[i + 3];
+		}
+		for(; i < n; i++)
+			s0 += a[i];
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * out[i] = (in[f * i] + ... + in[f * i + f - 1]) / f, with the
+	 * values added one group offset after the other, so that the inner
+	 * loop runs over all groups.
+	 */
+	private static void downsample(float[] in, float[] out, int f, int n) {
+		for(int i = 0; i < n; i++)
+			out[i] = in[f * i];
+		for(int j = 1; j < f; j++)
+			for(int i = 0; i < n; i++)
+				out[i] += in[f * i + j];
+		for(int i = 0; i < n; i++)
+			out[i] /= f;
+	}
+
+	/**
+	 * Compares the run time with per-value get() and set(), for the
+	 * group average of the given number of actograms (default 96) of
+	 * 100800 samples (70 days at 1 sample per minute), each stored in
+	 * the given storage type (default Heap).
+	 */
+	public static void main(String[] args) {
+		int nActograms = args.length > 0 ? Integer.parseInt(args[0]) : 96;
+		FloatStorage.Type type = args.length > 1
+			? FloatStorage.Type.valueOf(args[1])
+			: FloatStorage.Type.Heap;
+		int n = 70 * 1440;
+		Random rand = new Random(42);
+		ArrayList<Actogram> actograms = new ArrayList<Actogram>();
+		for(int k = 0; k < nActograms; k++) {
+			FloatStorage d = type.create(n);
+			for(int i = 0; i < n; i++)
+				d.set(i, rand.nextInt(100));
+			actograms.add(new Actogram("a" + k, d, 1440,
+				new TimeInterval(1, TimeInterval.Units.MINUTES),
+				TimeInterval.Units.MINUTES));
+		}
+
+		for(int r = 0; r < 5; r++) {
+			long start = System.nanoTime();
+			FloatStorage ref = type.create(n);
+			for(Actogram a : actograms)
+				for(int i = 0; i < n; i++)
+					ref.set(i, ref.get(i) + a.getStorage().get(i));
+			for(int i = 0; i < n; i++)
+				ref.set(i, ref.get(i) / nActograms);
+			double refSum = 0;
+			for(int i = 0; i < n; i++)
+				refSum += ref.get(i);
+			long t1 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Actogram avg = Actogram.average(actograms);
+			double sum = StorageMath.sum(avg.getStorage());
+			long t2 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Actogram ds1 = actograms.get(0).downsampleInt(10);
+			long t3 = System.nanoTime() - start;
+
+			int diff = 0;
+			for(int i = 0; i < n; i++)
+				if(ref.get(i) != avg.get(i))
+					diff++;
+			System.out.printf("average + sum: per value %.1f ms, blocked %.1f ms " +
+				"(%d differences, sums %.6f / %.6f); downsample: %.2f ms (%d)%n",
+				t1 * 1e-6, t2 * 1e-6, diff, refSum, sum, t3 * 1e-6, ds1.size());
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package actoj.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Provides the downsampled versions of an actogram for the zoom levels
+ * of the display. The prefix sums of the data are calculated once, and
+ * each zoom level is derived from them in O(output length). Recently
+ * used levels of all actograms are kept in an LRU cache with a common
+ * memory limit, together with the prefix sums and the min/max
+ * hierarchy, so that zooming back and forth doesn't recompute them.
+ * The levels are small display data, and are always kept on the heap,
+ * whatever the storage of the actogram.
+ *
+ * The levels are the same as the ones of Actogram.downsample(), up to
+ * floating point rounding.
+ *
+ * In addition, the minimum and maximum of each bin can be retrieved,
+ * to show the envelope of the activity at low zoom. They are queried
+ * from a min/max hierarchy over the data, which is also calculated
+ * once, in O(log(factor)) per bin.
+ */
+public class ZoomPyramid {
+
+	private static final int MEAN = 0, MIN = 1, MAX = 2;
+
+	/** The cache keys of the prefix sums and the min/max hierarchy. */
+	private static final int PREFIX = 3, HIERARCHY = 4;
+
+	/** The memory limit for the cached data of all actograms. */
+	private static final long MAX_BYTES = 128L << 20;
+
+	/**
+	 * The cached levels (Actogram), prefix sums (double[]) and min/max
+	 * hierarchies (float[][][]).
+	 */
+	private static final LinkedHashMap<Key, Object> cache =
+		new LinkedHashMap<Key, Object>(16, 0.75f, true);
+
+	/** Where the keys of collected pyramids are enqueued. */
+	private static final ReferenceQueue<ZoomPyramid> collected =
+		new ReferenceQueue<ZoomPyramid>();
+
+	private static long bytes = 0;
+
+	private final Actogram actogram;
+
+	ZoomPyramid(Actogram actogram) {
+		this.actogram = actogram;
+	}
+
+	/**
+	 * Returns the actogram, downsampled by the given factor, which may
+	 * be smaller than 1. For a factor of 1, the actogram itself is
+	 * returned.
+	 * @throws IllegalArgumentException if the samples per period are
+	 *         not a multiple of factor.
+	 */
+	public Actogram get(double factor) {
+		return get(MEAN, factor);
+	}
+
+	/**
+	 * Returns the minimum of the samples within each bin of length
+	 * factor, with the same length and calibration as get(factor).
+	 * Samples which overlap two bins count for both.
+	 */
+	public Actogram getMinimum(double factor) {
+		return get(MIN, factor);
+	}
+
+	/**
+	 * Returns the maximum of the samples within each bin, like
+	 * getMinimum().
+	 */
+	public Actogram getMaximum(double factor) {
+		return get(MAX, factor);
+	}
+
+	private Actogram get(int kind, double factor) {
+		if(factor == 1)
+			return actogram;
+		Key key = new Key(this, kind, factor);
+		Actogram level = (Actogram)lookup(key);
+		if(level != null)
+			return level;
+		if(kind != MEAN)
+			level = envelope(kind == MAX, factor);
+		else if(factor == (int)factor)
+			level = downsampleInt((int)factor);
+		else
+			level = downsampleDouble(factor);
+		store(key, level);
+		return level;
+	}
+
+	/**
+	 * Drops the prefix sums, the min/max hierarchy and the cached
+	 * levels, after the data of the actogram has changed.
+	 */
+	synchronized void invalidate() {
+		synchronized(cache) {
+			Iterator<Map.Entry<Key, Object>> it = cache.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<Key, Object> e = it.next();
+				if(e.getKey().pyramid.get() == this) {
+					bytes -= sizeOf(e.getValue());
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private static Object lookup(Key key) {
+		synchronized(cache) {
+			purge();
+			return cache.get(key);
+		}
+	}
+
+	private static void store(Key key, Object value) {
+		synchronized(cache) {
+			purge();
+			Object old = cache.put(key, value);
+			if(old != null)
+				bytes -= sizeOf(old);
+			bytes += sizeOf(value);
+			// keep at least the entry which was just added
+			Iterator<Object> it = cache.values().iterator();
+			while(bytes > MAX_BYTES && cache.size() > 1) {
+				Object evicted = it.next();
+				it.remove();
+				bytes -= sizeOf(evicted);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entries of pyramids which were garbage collected.
+	 * Must be called with the lock on cache.
+	 */
+	private static void purge() {
+		if(collected.poll() == null)
+			return;
+		while(collected.poll() != null)
+			;
+		Iterator<Map.Entry<Key, Object>> it = cache.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Key, Object> e = it.next();
+			if(e.getKey().pyramid.get() == null) {
+				bytes -= sizeOf(e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns p with p[i] = sum of the first i samples.
+	 */
+	private synchronized double[] getPrefix() {
+		Key key = new Key(this, PREFIX, 0);
+		double[] p = (double[])lookup(key);
+		if(p == null) {
+			FloatStorage data = actogram.getStorage();
+			int n = data.size();
+			p = new double[n + 1];
+			for(int i = 0; i < n; i++)
+				p[i + 1] = p[i] + data.get(i);
+			store(key, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Returns the min/max hierarchy, calculating it if necessary: level
+	 * k holds the minima resp. maxima of blocks of 2^(k+1) samples.
+	 */
+	private synchronized float[][][] getHierarchy() {
+		Key key = new Key(this, HIERARCHY, 0);
+		float[][][] h = (float[][][])lookup(key);
+		if(h == null) {
+			FloatStorage data = actogram.getStorage();
+			int n = data.size();
+			int nLevels = 0;
+			for(int l = n; l > 1; l = (l + 1) / 2)
+				nLevels++;
+			h = new float[2][nLevels][];
+			float[] pmin = null, pmax = null;
+			for(int k = 0, l = n; k < nLevels; k++) {
+				int lNext = (l + 1) / 2;
+				float[] min = new float[lNext];
+				float[] max = new float[lNext];
+				for(int i = 0; i < lNext; i++) {
+					int j = 2 * i;
+					float a0 = k == 0 ? data.get(j) : pmin[j];
+					float b0 = k == 0 ? data.get(j) : pmax[j];
+					if(j + 1 < l) {
+						float a1 = k == 0 ? data.get(j + 1) : pmin[j + 1];
+						float b1 = k == 0 ? data.get(j + 1) : pmax[j + 1];
+						a0 = Math.min(a0, a1);
+						b0 = Math.max(b0, b1);
+					}
+					min[i] = a0;
+					max[i] = b0;
+				}
+				h[0][k] = pmin = min;
+				h[1][k] = pmax = max;
+				l = lNext;
+			}
+			store(key, h);
+		}
+		return h;
+	}
+
+	/**
+	 * Returns the minimum (or maximum) of the samples from (inclusive)
+	 * to (exclusive), combining the largest blocks of the hierarchy
+	 * which fit into the range.
+	 */
+	private float query(float[][] h, FloatStorage data, boolean max, int from, int to) {
+		float v = max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+		// level -1 is the data itself
+		for(int k = -1; from < to; k++) {
+			if((from & 1) == 1) {
+				float x = k < 0 ? data.get(from) : h[k][from];
+				v = max ? Math.max(v, x) : Math.min(v, x);
+				from++;
+			}
+			if((to & 1) == 1) {
+				to--;
+				float x = k < 0 ? data.get(to) : h[k][to];
+				v = max ? Math.max(v, x) : Math.min(v, x);
+			}
+			from >>= 1;
+			to >>= 1;
+		}
+		return v;
+	}
+
+	/**
+	 * Returns the minima (or maxima) of the bins of length factor,
+	 * calibrated like the level returned by get(factor).
+	 */
+	private Actogram envelope(boolean max, double factor) {
+		Actogram mean = get(MEAN, factor);
+		FloatStorage data = actogram.getStorage();
+		float[][] h = getHierarchy()[max ? 1 : 0];
+		int n = data.size();
+		int l = mean.size();
+		FloatStorage newdata = new HeapFloatStorage(l);
+		for(int i = 0; i < l; i++) {
+			int from = Math.min(n - 1, (int)Math.floor(i * factor + 10e-6));
+			int to = Math.min(n, (int)Math.ceil((i + 1) * factor - 10e-6));
+			newdata.set(i, query(h, data, max, from, Math.max(to, from + 1)));
+		}
+		return new Actogram(actogram.name, newdata, mean.SAMPLES_PER_PERIOD,
+			mean.interval, actogram.unit);
+	}
+
+	/**
+	 * Like Actogram.downsampleInt().
+	 */
+	private Actogram downsampleInt(int f) {
+		int spp = actogram.SAMPLES_PER_PERIOD;
+		if(spp % f != 0)
+			throw new IllegalArgumentException("Invalid zoom factor: " + f);
+
+		double[] p = getPrefix();
+		int newlength = (p.length - 1) / f;
+		FloatStorage newdata = new HeapFloatStorage(newlength);
+		for(int i = 0; i < newlength; i++)
+			newdata.set(i, (float)((p[(i + 1) * f] - p[i * f]) / f));
+		return new Actogram(actogram.name, newdata, spp / f,
+			actogram.interval.mul(f), actogram.unit);
+	}
+
+	/**
+	 * Like Actogram.downsampleDouble(): Each new sample is the average
+	 * over an interval of length factor, where partially covered
+	 * samples contribute proportionally.
+	 */
+	private Actogram downsampleDouble(double factor) {
+		int spp = actogram.SAMPLES_PER_PERIOD;
+		double d = Math.IEEEremainder(spp, factor);
+		if(Math.abs(d) > 10e-6)
+			throw new IllegalArgumentException("Invalid zoom factor: " + factor);
+
+		double[] p = getPrefix();
+		FloatStorage data = actogram.getStorage();
+		int dl = p.length - 1;
+		int l = (int)Math.ceil(dl / factor);
+		FloatStorage newdata = new HeapFloatStorage(l);
+
+		double last = 0;
+		for(int newIdx = 0; newIdx < l; newIdx++) {
+			// the prefix sum at (newIdx + 1) * factor
+			double x = (newIdx + 1) * factor;
+			int uInt = (int)Math.floor(x);
+			double next;
+			if(uInt >= dl) {
+				next = p[dl];
+			} else {
+				next = p[uInt];
+				double partialOver = x - uInt;
+				if(partialOver > 10e-6)
+					next += partialOver * data.get(uInt);
+			}
+			newdata.set(newIdx, (float)((next - last) / factor));
+			last = next;
+		}
+
+		return new Actogram(actogram.name, newdata,
+			(int)Math.round(spp / factor),
+			new TimeInterval(actogram.interval.millis * factor),
+			actogram.unit);
+	}
+
+	private static long sizeOf(Object value) {
+		if(value instanceof double[])
+			return 8L * ((double[])value).length;
+		if(value instanceof float[][][]) {
+			long size = 0;
+			for(float[][] h : (float[][][])value)
+				for(float[] level : h)
+					size += 4L * level.length;
+			return size;
+		}
+		return 4L * ((Actogram)value).size();
+	}
+
+	private static final class Key {
+		/** Weak, so that the cache doesn't keep closed actograms alive. */
+		final WeakReference<ZoomPyramid> pyramid;
+		final int kind;
+		final double factor;
+		private final int hash;
+
+		Key(ZoomPyramid pyramid, int kind, double factor) {
+			this.pyramid = new WeakReference<ZoomPyramid>(pyramid, collected);
+			this.kind = kind;
+			this.factor = factor;
+			this.hash = 31 * (31 * System.identityHashCode(pyramid) + kind) +
+				Double.valueOf(factor).hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			ZoomPyramid p = pyramid.get();
+			return p != null && k.pyramid.get() == p && k.kind == kind &&
+				k.factor == factor;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Compares the levels and the run time with Actogram.downsample()
+	 * for a simulated 1-minute recording of the given number of days
+	 * (default 365), over the zoom levels of the display.
+	 */
+	public static void main(String[] args) {
+		int days = args.length > 0 ? Integer.parseInt(args[0]) : 365;
+		int spp = 1440;
+		float[] data = new float[days * spp];
+		Random rand = new Random(42);
+		for(int i = 0; i < data.length; i++)
+			data[i] = rand.nextInt(50);
+		Actogram a = new Actogram("test", data, spp,
+			new TimeInterval(1, TimeInterval.Units.MINUTES),
+			TimeInterval.Units.MINUTES);
+		double[] zoom = new double[] {
+			40, 30, 20, 18, 16, 15, 12, 10, 9, 8, 6, 5, 4, 3, 2, 0.5, 0.25 };
+
+		for(int r = 0; r < 3; r++) {
+			long t1 = 0, t2 = 0, t3 = 0, t4 = 0;
+			double maxErr = 0;
+			a.invalidateDerived();
+			for(double z : zoom) {
+				long start = System.nanoTime();
+				Actogram exact = a.downsample(z);
+				t1 += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				Actogram level = a.getPyramid().get(z);
+				t2 += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				a.getPyramid().get(z);
+				t3 += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				a.getPyramid().getMinimum(z);
+				a.getPyramid().getMaximum(z);
+				t4 += System.nanoTime() - start;
+
+				for(int i = 0; i < exact.size(); i++)
+					maxErr = Math.max(maxErr, Math.abs(exact.get(i) - level.get(i)));
+			}
+			System.out.printf("downsample: %.1f ms, pyramid: %.1f ms, " +
+				"cached: %.3f ms, min/max: %.1f ms, max. error %.2e%n",
+				t1 * 1e-6, t2 * 1e-6, t3 * 1e-6, t4 * 1e-6, maxErr);
+		}
+	}
+}
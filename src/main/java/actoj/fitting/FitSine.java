@@ -5,7 +5,8 @@ import java.util.Arrays;
 import pal.math.ConjugateDirectionSearch;
 import pal.math.MultivariateFunction;
 import actoj.core.Actogram;
-import actoj.util.Filters;
+import actoj.core.FloatStorage;
+import actoj.util.Smoothing;
 
 /**
  * Fit a function max(0, a * sin(b * t + c) + d)
@@ -46,9 +47,9 @@ public class FitSine {
 	}
 
 	private double[] optimizeMultiRes() {
-		A org = new A(actogram.getData(), 1);
+		A org = new A(actogram.getStorage(), 1);
 
-		int l = org.data.length;
+		int l = org.data.size();
 		int n = 1;
 		while((l /= 2) > 1000)
 			n++;
@@ -78,11 +79,11 @@ public class FitSine {
 
 	private void calculateInitials(A gram) {
 		int f = this.from / gram.factor;
-		int t = Math.min(this.to / gram.factor, gram.data.length);
+		int t = Math.min(this.to / gram.factor, gram.data.size());
 
 		float[] sorted = new float[t - f];
 
-		System.arraycopy(gram.data, f, sorted, 0, t -f);
+		gram.data.get(f, sorted, 0, t - f);
 		Arrays.sort(sorted);
 
 		float maximum = sorted[sorted.length - 1];
@@ -178,11 +179,11 @@ public class FitSine {
 		public double evaluate(double[] args) {
 			double[] param = getRealParameters(args);
 			double diff = 0.0;
-			float[] data = actogram.getData();
+			FloatStorage data = actogram.data;
 			int from = this.from / actogram.factor;
 			int to = this.to / actogram.factor;
-			for(int i = from; i < to && i < data.length; i++)
-				diff += Math.abs(data[i] - calculate(actogram.factor * i, param));
+			for(int i = from; i < to && i < data.size(); i++)
+				diff += Math.abs(data.get(i) - calculate(actogram.factor * i, param));
 
 			if(diff < minDiff) {
 				minDiff = diff;
@@ -192,47 +193,33 @@ public class FitSine {
 		}
 	}
 
+	/**
+	 * One level of the resolution pyramid. All levels are kept in the
+	 * same kind of storage as the actogram.
+	 */
 	private static class A {
-		float[] data;
+		FloatStorage data;
 		int factor;
 
-		A(float[] data, int factor) {
+		A(FloatStorage data, int factor) {
 			this.data = data;
 			this.factor = factor;
 		}
 
-		public float[] getData() {
-			return data;
-		}
-
 		A downsample() {
-			int newlength = data.length / 2;
-			float[] newdata = new float[newlength];
+			int newlength = data.size() / 2;
+			FloatStorage newdata = data.create(newlength);
 			for(int i = 0; i < newlength; i++) {
-				newdata[i] = 0;
-				newdata[i] += data[2 * i + 0];
-				newdata[i] += data[2 * i + 1];
-				newdata[i] /= 2f;
+				float v = 0;
+				v += data.get(2 * i + 0);
+				v += data.get(2 * i + 1);
+				newdata.set(i, v / 2f);
 			}
 			return new A(newdata, factor * 2);
 		}
 
 		A smooth(float sigma) {
-			float[] kernel = Filters.makeGaussianKernel(sigma);
-			int dl = data.length;
-			int kl = kernel.length;
-
-			float[] n = new float[data.length];
-
-			for(int i = 0; i < dl; i++) {
-				n[i] = 0;
-				for(int j = 0; j < kl; j++) {
-					int idx = i + j - kl/2;
-					float v = (idx < 0 || idx >= dl) ? 0 : data[idx];
-					n[i] += kernel[j] * v;
-				}
-			}
-			return new A(n, factor);
+			return new A(Smoothing.gaussian(data, sigma), factor);
 		}
 	}
 }
@@ -16,14 +16,14 @@ import java.awt.RenderingHints;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.awt.image.BufferedImage;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.swing.JPanel;
 
-import actoj.AverageActivity;
-import actoj.activitypattern.Acrophase;
+import actoj.analysis.AnalysisService;
 import actoj.activitypattern.OnOffset;
 import actoj.core.Actogram;
 import actoj.core.ExternalVariable;
@@ -31,13 +31,8 @@ import actoj.core.MarkerList;
 import actoj.core.MarkerList.MarkerChangeListener;
 import actoj.core.TimeInterval;
 import actoj.core.TimeInterval.Units;
-import actoj.fitting.FitSine;
-import actoj.periodogram.EnrightPeriodogram;
-import actoj.periodogram.FourierPeriodogram;
-import actoj.periodogram.LombScarglePeriodogram;
+import actoj.periodogram.BatchPeriodogram;
 import actoj.periodogram.Periodogram;
-import actoj.util.Filters;
-import actoj.util.PeakFinder;
 
 /**
  * A JComponent representing one actogram plus accompanying data, like
@@ -144,8 +139,20 @@ public class ActogramCanvas extends JPanel
 				float whRatio,
 				Units fpUnit,
 				Feedback f) {
+		this(new ActogramProcessor(actogram, zoom, uLimit, lLimit, ppl, whRatio),
+			subd, fpUnit, f);
+	}
+
+	/**
+	 * Creates a canvas for an existing ActogramProcessor.
+	 */
+	public ActogramCanvas(
+				ActogramProcessor processor,
+				int subd,
+				Units fpUnit,
+				Feedback f) {
 		super();
-		this.processor = new ActogramProcessor(actogram, zoom, uLimit, lLimit, ppl, whRatio);
+		this.processor = processor;
 		this.feedback = f;
 		this.nSubdivisions = subd;
 		this.fpUnit = fpUnit;
@@ -153,15 +160,14 @@ public class ActogramCanvas extends JPanel
 
 		INT_TOP = (int) (1.5 * getTitleHeight());
 
-		int nExternals = actogram.getExternalVariables().length;
+		int nExternals = processor.original.getExternalVariables().length;
 		INT_TOP_ALL = INT_TOP + (1 + nExternals) * extVarHeight;
 
 		YCALIB_WIDTH = calculateYCalibrationWidth();
 		INT_LEFT_TOTAL = INT_LEFT + YCALIB_WIDTH;
 
-		BufferedImage ip = processor.processor;
-		width = ip.getWidth() + INT_LEFT_TOTAL + INT_RIGHT;
-		height = ip.getHeight() + INT_TOP_ALL + INT_BOTTOM;
+		width = processor.width + INT_LEFT_TOTAL + INT_RIGHT;
+		height = processor.height + INT_TOP_ALL + INT_BOTTOM;
 
 		this.setPreferredSize(new Dimension(width, height));
 
@@ -188,6 +194,30 @@ public class ActogramCanvas extends JPanel
 		return selStart != null && selCurr != null;
 	}
 
+	/**
+	 * Returns the selected data range as indices into the original
+	 * actogram, start inclusive and end exclusive, or null if there
+	 * is no valid selection.
+	 */
+	public int[] getSelectionInOriginal() {
+		if(selStart == null || selCurr == null)
+			return null;
+
+		Point st = upper(selStart, selCurr);
+		Point cu = lower(selStart, selCurr);
+		if(st.y == cu.y && st.x > cu.x) {
+			Point tmp = st; st = cu; cu = tmp;
+		}
+		int sIdx = processor.getIndex(st.x, st.y);
+		if(sIdx < 0) return null;
+		int cIdx = processor.getIndex(cu.x, cu.y);
+		if(cIdx < 0) return null;
+
+		return new int[] {
+			processor.getIndexInOriginal(sIdx),
+			processor.getIndexInOriginal(cIdx) };
+	}
+
 	// x and y are coordinates within this component
 	public String getPositionString(int x, int y) {
 		if(x < INT_LEFT_TOTAL || y < INT_TOP_ALL || x >= width - INT_RIGHT || y >= height - INT_BOTTOM)
@@ -231,17 +261,12 @@ public class ActogramCanvas extends JPanel
 		if(selStart == null || selCurr == null)
 			throw new RuntimeException("Interval required");
 
-		Point st = upper(selStart, selCurr);
-		Point cu = lower(selStart, selCurr);
-
-		int from = processor.getIndex(st.x, st.y);
-		int to = processor.getIndex(cu.x, cu.y);
+		int[] sel = getSelectionInOriginal();
+		if(sel == null) return;
 
 		Actogram a = processor.original;
-		from = processor.getIndexInOriginal(from);
-		to = processor.getIndexInOriginal(to);
-
-		ArrayList<Integer> m = Acrophase.calculate(a, from, to, T);
+		ArrayList<Integer> m = await(AnalysisService.getDefault().
+			acrophase(a, sel[0], sel[1], T));
 		MarkerList ml = new MarkerList("Acrophase", m, a.interval.millis, Color.BLUE);
 		ml.addMarkerChangeListener(this);
 		ml.calculateRegression(T);
@@ -253,69 +278,32 @@ public class ActogramCanvas extends JPanel
 		if(selStart == null || selCurr == null)
 			throw new RuntimeException("Interval required");
 
-		Point st = upper(selStart, selCurr);
-		Point cu = lower(selStart, selCurr);
-
-		int from = processor.getIndex(st.x, st.y);
-		int to = processor.getIndex(cu.x, cu.y);
-
-		Actogram org = processor.original;
-		Actogram a = org;
-		if(gaussianSigma > 0) {
-			float[] kernel = Filters.makeGaussianKernel(gaussianSigma);
-			a = org.convolve(kernel);
-		}
-
-		from = processor.getIndexInOriginal(from);
-		to = processor.getIndexInOriginal(to);
-		TimeInterval period = new TimeInterval(a.SAMPLES_PER_PERIOD * a.interval.millis);
-
-		OnOffset onoff = new OnOffset();
-		onoff.calculate(a, from, to, period, thresholdMethod);
-		ArrayList<Integer> on = onoff.getOnsets();
-		MarkerList onML = new MarkerList("Onset", on, a.interval.millis, Color.RED);
-		onML.calculateRegression(period);
-		onML.addMarkerChangeListener(this);
-		org.addMarker(onML);
-		ArrayList<Integer> off = onoff.getOffsets();
-		MarkerList offML = new MarkerList("Offset", off, a.interval.millis, Color.RED);
-		offML.calculateRegression(period);
-		offML.addMarkerChangeListener(this);
-		org.addMarker(offML);
+		int[] sel = getSelectionInOriginal();
+		if(sel == null) return;
 
-		repaint();
+		addOnOffsets(await(AnalysisService.getDefault().
+			onOffsets(processor.original, sel[0], sel[1], gaussianSigma, thresholdMethod)));
 	}
 
 	public void calculateOnAndOffsets(float gaussianSigma, float threshold) {
 		if(selStart == null || selCurr == null)
 			throw new RuntimeException("Interval required");
 
-		Point st = upper(selStart, selCurr);
-		Point cu = lower(selStart, selCurr);
+		int[] sel = getSelectionInOriginal();
+		if(sel == null) return;
 
-		int from = processor.getIndex(st.x, st.y);
-		int to = processor.getIndex(cu.x, cu.y);
+		addOnOffsets(await(AnalysisService.getDefault().
+			onOffsets(processor.original, sel[0], sel[1], gaussianSigma, threshold)));
+	}
 
+	private void addOnOffsets(AnalysisService.OnOffsets onoff) {
 		Actogram org = processor.original;
-		Actogram a = org;
-		if(gaussianSigma > 0) {
-			float[] kernel = Filters.makeGaussianKernel(gaussianSigma);
-			a = org.convolve(kernel);
-		}
-
-		from = processor.getIndexInOriginal(from);
-		to = processor.getIndexInOriginal(to);
-		TimeInterval period = new TimeInterval(a.SAMPLES_PER_PERIOD * a.interval.millis);
-
-		OnOffset onoff = new OnOffset();
-		onoff.calculate(a, from, to, period, threshold);
-		ArrayList<Integer> on = onoff.getOnsets();
-		MarkerList onML = new MarkerList("Onset", on, a.interval.millis, Color.RED);
+		TimeInterval period = onoff.period;
+		MarkerList onML = new MarkerList("Onset", onoff.onsets, org.interval.millis, Color.RED);
 		onML.calculateRegression(period);
 		onML.addMarkerChangeListener(this);
 		org.addMarker(onML);
-		ArrayList<Integer> off = onoff.getOffsets();
-		MarkerList offML = new MarkerList("Offset", off, a.interval.millis, Color.RED);
+		MarkerList offML = new MarkerList("Offset", onoff.offsets, org.interval.millis, Color.RED);
 		offML.calculateRegression(period);
 		offML.addMarkerChangeListener(this);
 		org.addMarker(offML);
@@ -327,35 +315,14 @@ public class ActogramCanvas extends JPanel
 		if(selStart == null || selCurr == null)
 			throw new RuntimeException("Interval required");
 
-		Point st = upper(selStart, selCurr);
-		Point cu = lower(selStart, selCurr);
-		if(st.y == cu.y && st.x > cu.x) {
-			Point tmp = st; st = cu; cu = tmp;
-		}
-		int sIdx = processor.getIndex(st.x, st.y);
-		if(sIdx < 0) return;
-		int cIdx = processor.getIndex(cu.x, cu.y);
-		if(cIdx < 0) return;
-
-		sIdx = processor.getIndexInOriginal(sIdx);
-		cIdx = processor.getIndexInOriginal(cIdx);
-
-		Actogram acto = processor.original;
-		if(sigma > 0) {
-			float[] kernel = Filters.makeGaussianKernel(sigma);
-			acto = acto.convolve(kernel);
-		}
-
-		int periodIdx = acto.getIndexForTime(period);
-
-		float[] values = AverageActivity.calculateAverageActivity(
-				acto, sIdx, cIdx, periodIdx);
+		int[] sel = getSelectionInOriginal();
+		if(sel == null) return;
 
-		String unit = acto.unit.abbr;
-		float[] time = new float[periodIdx];
-		float factor = acto.interval.intervalIn(acto.unit);
-		for(int i = 0; i < periodIdx; i++)
-			time[i] = i * factor;
+		AnalysisService.ActivityPattern pattern = await(AnalysisService.
+			getDefault().averageActivity(processor.original, sel[0], sel[1],
+				period, sigma));
+		float[] time = pattern.time;
+		float[] values = pattern.values;
 
 		double[] yminmax = Tools.getMinMax(values);
 		double[] xminmax = Tools.getMinMax(time);
@@ -363,8 +330,8 @@ public class ActogramCanvas extends JPanel
 		yminmax[0] -= 0.1 * (yminmax[1] - yminmax[0]);
 
 		Plot plot = new Plot(
-			"Average Activity Pattern - " + acto.name,
-			"Time (" + unit + ")",
+			"Average Activity Pattern - " + pattern.name,
+			"Time (" + pattern.unit + ")",
 			"Average activity",
 			time,
 			values,
@@ -380,7 +347,8 @@ public class ActogramCanvas extends JPanel
 	}
 
 	/**
-	 * @param method: 0 - Fourier, 1 - Enright, 2 - Lomb-Scargle
+	 * @param method: 0 - Fourier, 1 - Enright, 2 - Lomb-Scargle,
+	 *                3 - Fourier (FFT), 4 - Lomb-Scargle (fast)
 	 */
 	public void calculatePeriodogram(TimeInterval fromPeriod, TimeInterval toPeriod,
 			int method, int nPeaks,
@@ -389,79 +357,27 @@ public class ActogramCanvas extends JPanel
 		if(selStart == null || selCurr == null)
 			throw new RuntimeException("Interval required");
 
-		Point st = upper(selStart, selCurr);
-		Point cu = lower(selStart, selCurr);
-		if(st.y == cu.y && st.x > cu.x) {
-			Point tmp = st; st = cu; cu = tmp;
-		}
-		int sIdx = processor.getIndex(st.x, st.y);
-		if(sIdx < 0) return;
-		int cIdx = processor.getIndex(cu.x, cu.y);
-		if(cIdx < 0) return;
+		int[] sel = getSelectionInOriginal();
+		if(sel == null) return;
 
-		sIdx = processor.getIndexInOriginal(sIdx);
-		cIdx = processor.getIndexInOriginal(cIdx);
-
-		Actogram org = processor.original;
-		Actogram acto = org;
-		if(sigma > 0) {
-			float[] kernel = Filters.makeGaussianKernel(sigma);
-			acto = org.convolve(kernel);
-		}
-
-		if(stepsize > 1) {
-			try {
-				acto = acto.downsample(stepsize);
-				double zoom = org.SAMPLES_PER_PERIOD / (double)acto.SAMPLES_PER_PERIOD;
-				sIdx = (int)Math.round(sIdx / zoom);
-				cIdx = (int)Math.round(cIdx / zoom);
-			} catch(Exception e) {
-				IJ.error("Invalid downsampling factor");
-				return;
-			}
-		}
-
-		int fromPeriodIdx = acto.getIndexForTime(fromPeriod);
-		int toPeriodIdx = acto.getIndexForTime(toPeriod);
-
-		Periodogram fp = null;
-		switch(method) {
-			case 0:
-				fp = new FourierPeriodogram(acto, sIdx,
-					cIdx, fromPeriodIdx, toPeriodIdx, pLevel);
-				break;
-			case 1:
-				fp = new EnrightPeriodogram(acto, sIdx,
-					cIdx, fromPeriodIdx, toPeriodIdx, pLevel);
-				break;
-			case 2:
-				fp = new LombScarglePeriodogram(acto, sIdx,
-					cIdx, fromPeriodIdx, toPeriodIdx, pLevel);
-				break;
-			default: throw new RuntimeException(
-					   "Invalid periodogram method");
-		}
-
-		String unit = acto.unit.abbr;
-		float[] values = fp.getPeriodogramValues();
-		float[] pValues = fp.getPValues();
-		float[] periods = fp.getPeriod();
-
-		/* incorporate calibration */
-		float factor = acto.interval.intervalIn(acto.unit);
-		for(int i = 0; i < periods.length; i++)
-			periods[i] *= factor;
-
-		/* use pvalues as references */
-		float[] relatives = new float[values.length];
-		System.arraycopy(values, 0, relatives, 0, values.length);
-		if(fp.canCalculatePValues()) {
-			for(int i = 0; i < values.length; i++)
-				relatives[i] -= pValues[i];
+		if(stepsize > 1 &&
+				processor.original.SAMPLES_PER_PERIOD % stepsize != 0) {
+			IJ.error("Invalid downsampling factor");
+			return;
 		}
 
-		/* find peaks */
-		int[] peaks = PeakFinder.findPeaks(relatives);
+		BatchPeriodogram.Config config = new BatchPeriodogram.Config(
+			method, fromPeriod, toPeriod, sigma, stepsize, pLevel);
+		BatchPeriodogram.Result fp = await(AnalysisService.getDefault().
+			periodogram(processor.original, sel[0], sel[1], config,
+				Periodogram.IJ_PROGRESS));
+
+		float[] values = fp.values;
+		float[] pValues = fp.pValues;
+		float[] periods = fp.period;
+		int[] peaks = fp.peaks;
+		if(values.length == 0)
+			return;
 
 		double[] yminmax = Tools.getMinMax(values);
 		double[] xminmax = Tools.getMinMax(periods);
@@ -469,9 +385,9 @@ public class ActogramCanvas extends JPanel
 		yminmax[0] -= 0.1 * (yminmax[1] - yminmax[0]);
 
 		Plot plot = new Plot(
-			"Periodogram (" + fp.getMethod() + ") - " + acto.name,
-			"Period (" + unit + ")",
-			fp.getResponseName(),
+			"Periodogram (" + fp.method + ") - " + fp.name,
+			"Period (" + fp.unit + ")",
+			fp.responseName,
 			periods,
 			values,
 			Plot.LINE);
@@ -482,7 +398,7 @@ public class ActogramCanvas extends JPanel
 
 		plot.setColor(Color.BLUE);
 		plot.draw();
-		if(fp.canCalculatePValues()) {
+		if(fp.hasPValues) {
 			plot.setColor(Color.RED);
 			plot.addPoints(periods, pValues, Plot.LINE);
 		}
@@ -493,15 +409,14 @@ public class ActogramCanvas extends JPanel
 		for(int i = 0; i < nPeaks && i < peaks.length; i++) {
 			int p = peaks[i];
 			plot.drawLine(
-				(p + fromPeriodIdx) * factor,
+				periods[p],
 				yminmax[0],
-				(p + fromPeriodIdx) * factor,
+				periods[p],
 				values[p]);
 
-			float x = p / (float)(toPeriodIdx - fromPeriodIdx);
+			float x = p / (float)periods.length;
 			float y = (float)((yminmax[1] - values[p]) / (yminmax[1] - yminmax[0]));
-			float period = (fromPeriodIdx + p) * factor;
-			plot.addLabel(x, y, df.format(period));
+			plot.addLabel(x, y, df.format(periods[p]));
 		}
 		plot.show();
 	}
@@ -510,29 +425,20 @@ public class ActogramCanvas extends JPanel
 		if(selStart == null || selCurr == null)
 			throw new RuntimeException("Interval required");
 
-		Point st = upper(selStart, selCurr);
-		Point cu = lower(selStart, selCurr);
-		if(st.y == cu.y && st.x > cu.x) {
-			Point tmp = st; st = cu; cu = tmp;
-		}
-		int sIdx = processor.getIndex(st.x, st.y);
-		if(sIdx < 0) return;
-		int cIdx = processor.getIndex(cu.x, cu.y);
-		if(cIdx < 0) return;
-
-		sIdx = processor.getIndexInOriginal(sIdx);
-		cIdx = processor.getIndexInOriginal(cIdx);
+		int[] sel = getSelectionInOriginal();
+		if(sel == null) return;
+		int sIdx = sel[0];
+		int cIdx = sel[1];
 
 		Actogram org = processor.original;
 
-		double[] param = FitSine.fit(org, sIdx, cIdx);
-		Actogram pred = FitSine.getCurve(org, param);
+		AnalysisService.SineFit fit = await(AnalysisService.getDefault().
+			fitSine(org, sIdx, cIdx));
+		double[] param = fit.param;
+		Actogram pred = fit.getCurve(org);
 
 		pred = pred.downsample(processor.zoom);
-		processor.drawInto(pred,
-			new ActogramProcessor.Histogram(
-				new GraphicsBackend(processor.processor.createGraphics())),
-			new Color(1f, 0f, 0f, 0.5f));
+		processor.addOverlay(pred, new Color(1f, 0f, 0f, 0.5f));
 
 		selStart = null;
 		selCurr = null;
@@ -545,17 +451,34 @@ public class ActogramCanvas extends JPanel
 		msg.append("\n \n");
 		msg.append("Function: min(0, a * sin(b * t + c) + d)\n \n");
 		msg.append("a = ").append((float)param[0]).append("\n");
-		double w = param[1] / org.interval.millis;
-		msg.append("b = ").append((float)w).append("/ms").append("\n");
+		msg.append("b = ").append((float)fit.getFrequency(org)).append("/ms").append("\n");
 		msg.append("c = ").append((float)param[2]).append("\n");
 		msg.append("d = ").append((float)param[3]).append("\n \n");
-		double T = 2 * Math.PI / w; // in ms
-		msg.append("T = " + new TimeInterval(Math.round(T)).
-						intervalIn(org.unit));
+		msg.append("T = " + fit.getPeriod(org).intervalIn(org.unit));
 
 		IJ.showMessage(msg.toString());
 	}
 
+	/**
+	 * Waits for the result of an analysis, and rethrows its exceptions.
+	 */
+	private static <T> T await(Future<T> f) {
+		try {
+			return f.get();
+		} catch(InterruptedException e) {
+			f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Analysis interrupted", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
 	@Override
 	public void paintComponent(Graphics g) {
 		Graphics2D g2d = (Graphics2D)g;
@@ -579,7 +502,13 @@ public class ActogramCanvas extends JPanel
 		gb.setOffsX(0);
 		gb.setOffsY(0);
 
-		g.drawImage(processor.processor, INT_LEFT_TOTAL, INT_TOP_ALL, null);
+		// only render the tiles which are visible in the viewport
+		Rectangle visible = getVisibleRect();
+		Rectangle clip = g.getClipBounds();
+		if(clip != null)
+			visible = visible.intersection(clip);
+		visible.translate(-INT_LEFT_TOTAL, -INT_TOP_ALL);
+		processor.paint(g, INT_LEFT_TOTAL, INT_TOP_ALL, visible, this);
 
 		drawYCalibration(gb);
 
@@ -607,8 +536,17 @@ public class ActogramCanvas extends JPanel
 		gb.setOffsX(offX + gb.getFactorX() * INT_LEFT_TOTAL);
 		gb.setOffsY(offY + gb.getFactorY() * INT_TOP_ALL);
 		processor.clearBackground(gb);
-		processor.drawInto(processor.downsampled,
-				new ActogramProcessor.Histogram(gb), Color.BLACK);
+		if(processor.hasEnvelope()) {
+			processor.drawInto(processor.maximum,
+					new ActogramProcessor.Histogram(gb), Color.LIGHT_GRAY);
+			processor.drawInto(processor.downsampled,
+					new ActogramProcessor.Histogram(gb), Color.GRAY);
+			processor.drawInto(processor.minimum,
+					new ActogramProcessor.Histogram(gb), Color.BLACK);
+		} else {
+			processor.drawInto(processor.downsampled,
+					new ActogramProcessor.Histogram(gb), Color.BLACK);
+		}
 		gb.setOffsX(offX);
 		gb.setOffsY(offY);
 
@@ -643,7 +581,7 @@ public class ActogramCanvas extends JPanel
 		Point c = new Point(cu.x + INT_LEFT_TOTAL, cu.y + INT_TOP_ALL);
 
 		int x0 = INT_LEFT_TOTAL;
-		int x1 = INT_LEFT_TOTAL + processor.processor.getWidth();
+		int x1 = INT_LEFT_TOTAL + processor.width;
 		int sh = processor.signalHeight;
 
 		// draw start marker
@@ -1,16 +1,78 @@
 package actoj.gui;
 
 import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import actoj.core.Actogram;
 
+/**
+ * Renders an actogram. The image is split into tiles of TILE_SIZE x
+ * TILE_SIZE pixels, which are rendered on demand when they are painted,
+ * and kept in an LRU cache shared by all processors. Tiles can be
+ * rendered in the background, with a placeholder painted meanwhile.
+ *
+ * Tiles are rasterized by writing the pixels directly; drawInto() with
+ * a DrawingBackend draws the same image as vector graphics, e.g. for
+ * PDF export.
+ */
 public class ActogramProcessor {
 
+	/** The edge length of a tile, in pixels. */
+	public static final int TILE_SIZE = 256;
+
+	/** The memory limit for the cached tiles of all processors. */
+	private static final long MAX_CACHE_BYTES = 64L << 20;
+
+	private static final TileCache TILES = new TileCache(MAX_CACHE_BYTES);
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private static final Color PLACEHOLDER = new Color(235, 235, 235);
+
+	private static final Color FOREGROUND = new Color(50, 50, 50);
+
+	/** Identifies the tiles of this processor in the cache. */
+	private final int id = nextId.getAndIncrement();
+
+	/** Actograms drawn on top of the actogram, e.g. fitted curves. */
+	private final ArrayList<Overlay> overlays = new ArrayList<Overlay>();
+
+	/** The tiles which are being rendered in the background. */
+	private final HashMap<Long, Future<?>> pending = new HashMap<Long, Future<?>>();
+
+	/**
+	 * Incremented when the overlays change, to discard tiles which
+	 * were rendered before. Guarded by pending, like disposed.
+	 */
+	private int version = 0;
+
+	private boolean disposed = false;
+
+	/** The signal heights of downsampled, in pixels, created on demand. */
+	private int[] heights;
+
+	/** The signal heights of minimum and maximum. */
+	private int[] minHeights, maxHeights;
+
 	public final Actogram original;
 	public final Actogram downsampled;
-	public final BufferedImage processor;
+
+	/**
+	 * The minimum and maximum of the original data within each sample
+	 * of downsampled, which are drawn around it; null unless the
+	 * envelope is shown.
+	 */
+	public final Actogram minimum, maximum;
 
 	public final double zoom;
 	public final float uLimit;
@@ -27,20 +89,57 @@ public class ActogramProcessor {
 	public final float whRatio;
 
 	public ActogramProcessor(Actogram actogram, double zoom, float uLimit, float lLimit, int ppl, float whRatio) {
-		this.original = actogram;
+		this(actogram, zoom, uLimit, lLimit, ppl, whRatio, false);
+	}
 
-		int newSPP = (int)Math.round(actogram.SAMPLES_PER_PERIOD / zoom);
-		this.zoom = actogram.SAMPLES_PER_PERIOD / (double)newSPP;
-		this.downsampled = actogram.downsample(this.zoom);
+	/**
+	 * @param envelope Whether to draw the minimum and maximum of the
+	 *        data within each displayed sample, in addition to the mean.
+	 */
+	public ActogramProcessor(Actogram actogram, double zoom, float uLimit, float lLimit, int ppl, float whRatio, boolean envelope) {
+		this(actogram, actualZoom(actogram, zoom), null, uLimit, lLimit, ppl, whRatio, envelope);
+	}
+
+	/**
+	 * Creates a processor with different limits or layout for the same
+	 * actogram and zoom, which reuses the downsampled data and the
+	 * overlays of the given one.
+	 */
+	public ActogramProcessor(ActogramProcessor p, float uLimit, float lLimit, int ppl, float whRatio) {
+		this(p, uLimit, lLimit, ppl, whRatio, p.hasEnvelope());
+	}
+
+	/**
+	 * Like ActogramProcessor(ActogramProcessor, float, float, int, float),
+	 * and shows or hides the envelope.
+	 */
+	public ActogramProcessor(ActogramProcessor p, float uLimit, float lLimit, int ppl, float whRatio, boolean envelope) {
+		this(p.original, p.zoom, p.downsampled, uLimit, lLimit, ppl, whRatio, envelope);
+		synchronized(p.overlays) {
+			// with new heights for the new limits
+			for(Overlay o : p.overlays)
+				overlays.add(new Overlay(o.actogram, o.color));
+		}
+	}
+
+	private ActogramProcessor(Actogram actogram, double zoom, Actogram downsampled,
+			float uLimit, float lLimit, int ppl, float whRatio, boolean envelope) {
+		this.original = actogram;
+		this.zoom = zoom;
+		this.downsampled = downsampled != null
+			? downsampled
+			: actogram.getPyramid().get(zoom);
+		this.minimum = envelope ? actogram.getPyramid().getMinimum(zoom) : null;
+		this.maximum = envelope ? actogram.getPyramid().getMaximum(zoom) : null;
 
 		this.uLimit = uLimit;
 		this.lLimit = lLimit;
 		this.ppl = ppl;
 		this.whRatio = whRatio;
 
-		this.periods = (int)Math.ceil(downsampled.size() /
-			(float)downsampled.SAMPLES_PER_PERIOD);
-		int spp = downsampled.SAMPLES_PER_PERIOD;
+		this.periods = (int)Math.ceil(this.downsampled.size() /
+			(float)this.downsampled.SAMPLES_PER_PERIOD);
+		int spp = this.downsampled.SAMPLES_PER_PERIOD;
 
 		int nlines = periods + 1;
 
@@ -49,10 +148,269 @@ public class ActogramProcessor {
 
 		this.width = ppl * spp + 2;
 		this.height = nlines * baselineDist;
+	}
+
+	public boolean hasEnvelope() {
+		return maximum != null;
+	}
+
+	/**
+	 * Returns the zoom factor which is closest to the given one and
+	 * yields an integer number of samples per period.
+	 */
+	private static double actualZoom(Actogram actogram, double zoom) {
+		int newSPP = (int)Math.round(actogram.SAMPLES_PER_PERIOD / zoom);
+		return actogram.SAMPLES_PER_PERIOD / (double)newSPP;
+	}
+
+	/**
+	 * Drops the cached tiles of this processor and cancels the ones
+	 * which are still waiting to be rendered, when it is not displayed
+	 * anymore.
+	 */
+	public void dispose() {
+		synchronized(pending) {
+			disposed = true;
+			cancelPending();
+		}
+		TILES.removeAll(id);
+	}
+
+	private void cancelPending() {
+		for(Future<?> f : pending.values())
+			f.cancel(false);
+		pending.clear();
+	}
+
+	/**
+	 * Paints the part of the actogram within clip, which is given in
+	 * the coordinates of the actogram, at (x, y). Tiles which are not
+	 * cached yet are rendered.
+	 * @param clip The area to paint, or null to paint everything.
+	 */
+	public void paint(Graphics g, int x, int y, Rectangle clip) {
+		paint(g, x, y, clip, null);
+	}
+
+	/**
+	 * Like paint(Graphics, int, int, Rectangle), but tiles which are not
+	 * cached yet are rendered in the background and painted as a
+	 * placeholder; the observer is repainted when they are ready.
+	 * @param observer The component which is painted into, or null to
+	 *        render missing tiles immediately.
+	 */
+	public void paint(Graphics g, int x, int y, Rectangle clip, Component observer) {
+		Rectangle r = new Rectangle(0, 0, width, height);
+		if(clip != null)
+			r = r.intersection(clip);
+		if(r.isEmpty())
+			return;
+		int tx0 = r.x / TILE_SIZE, tx1 = (r.x + r.width - 1) / TILE_SIZE;
+		int ty0 = r.y / TILE_SIZE, ty1 = (r.y + r.height - 1) / TILE_SIZE;
+		for(int ty = ty0; ty <= ty1; ty++) {
+			for(int tx = tx0; tx <= tx1; tx++) {
+				int tileX = x + tx * TILE_SIZE, tileY = y + ty * TILE_SIZE;
+				if(observer == null) {
+					g.drawImage(getTile(tx, ty), tileX, tileY, null);
+					continue;
+				}
+				BufferedImage tile = TILES.get(TileCache.key(id, tx, ty));
+				if(tile != null) {
+					g.drawImage(tile, tileX, tileY, null);
+				} else {
+					requestTile(tx, ty, observer, tileX, tileY);
+					g.setColor(PLACEHOLDER);
+					g.fillRect(tileX, tileY,
+						Math.min(TILE_SIZE, width - tx * TILE_SIZE),
+						Math.min(TILE_SIZE, height - ty * TILE_SIZE));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws the given actogram on top of this one, with the Histogram
+	 * style.
+	 */
+	public void addOverlay(Actogram actogram, Color color) {
+		synchronized(overlays) {
+			overlays.add(new Overlay(actogram, color));
+		}
+		synchronized(pending) {
+			version++;
+			cancelPending();
+		}
+		TILES.removeAll(id);
+	}
+
+	private BufferedImage getTile(int tx, int ty) {
+		long key = TileCache.key(id, tx, ty);
+		BufferedImage tile = TILES.get(key);
+		if(tile == null) {
+			tile = renderTile(tx, ty);
+			TILES.put(key, tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Renders the given tile in the background, unless it is already
+	 * being rendered, and repaints it in observer at (x, y) afterwards.
+	 */
+	private void requestTile(final int tx, final int ty,
+			final Component observer, final int x, final int y) {
+		final long key = TileCache.key(id, tx, ty);
+		synchronized(pending) {
+			if(disposed || pending.containsKey(key))
+				return;
+			final int v = version;
+			pending.put(key, RenderWorkers.EXECUTOR.submit(new Runnable() {
+				@Override
+				public void run() {
+					BufferedImage tile = renderTile(tx, ty);
+					synchronized(pending) {
+						pending.remove(key);
+						if(disposed || version != v)
+							return;
+						TILES.put(key, tile);
+					}
+					observer.repaint(x, y, tile.getWidth(), tile.getHeight());
+				}
+			}));
+		}
+	}
+
+	private BufferedImage renderTile(int tx, int ty) {
+		Rectangle r = new Rectangle(tx * TILE_SIZE, ty * TILE_SIZE,
+			Math.min(TILE_SIZE, width - tx * TILE_SIZE),
+			Math.min(TILE_SIZE, height - ty * TILE_SIZE));
+		BufferedImage tile = new BufferedImage(r.width, r.height,
+			BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+
+		// like clearBackground()
+		fill(pixels, r, 0, 0, width, height, 0xffffffff);
+		int border = FOREGROUND.getRGB();
+		fill(pixels, r, 0, 0, width, 1, border);
+		fill(pixels, r, 0, height - 1, width, 1, border);
+		fill(pixels, r, 0, 0, 1, height, border);
+		fill(pixels, r, width - 1, 0, 1, height, border);
+
+		if(hasEnvelope()) {
+			rasterInto(maximum, getEnvelopeHeights(true), pixels, r, Color.LIGHT_GRAY.getRGB());
+			rasterInto(downsampled, getHeights(), pixels, r, Color.GRAY.getRGB());
+			rasterInto(minimum, getEnvelopeHeights(false), pixels, r, FOREGROUND.getRGB());
+		} else {
+			rasterInto(downsampled, getHeights(), pixels, r, FOREGROUND.getRGB());
+		}
+
+		// translucent overlays are left to Java2D, for its blending
+		Graphics2D g = null;
+		synchronized(overlays) {
+			for(Overlay o : overlays) {
+				if(o.color.getAlpha() == 255) {
+					rasterInto(o.actogram, o.getHeights(), pixels, r, o.color.getRGB());
+					continue;
+				}
+				if(g == null) {
+					g = tile.createGraphics();
+					g.translate(-r.x, -r.y);
+				}
+				drawInto(o.actogram, new Histogram(new GraphicsBackend(g)), o.color, r);
+			}
+		}
+		if(g != null)
+			g.dispose();
+		return tile;
+	}
+
+	private synchronized int[] getHeights() {
+		if(heights == null)
+			heights = calculateHeights(downsampled);
+		return heights;
+	}
 
-		this.processor = createProcessor();
-		drawInto(downsampled, new Histogram(
-			new GraphicsBackend(processor.getGraphics())), new Color(50, 50, 50));
+	private synchronized int[] getEnvelopeHeights(boolean max) {
+		if(max && maxHeights == null)
+			maxHeights = calculateHeights(maximum);
+		if(!max && minHeights == null)
+			minHeights = calculateHeights(minimum);
+		return max ? maxHeights : minHeights;
+	}
+
+	/**
+	 * Returns the signal height in pixels of each sample of the given
+	 * actogram, as drawn by drawPeriod().
+	 */
+	private int[] calculateHeights(Actogram actogram) {
+		int[] h = new int[actogram.size()];
+		for(int i = 0; i < h.length; i++) {
+			float v = actogram.get(i);
+			if(v > uLimit)
+				v = uLimit;
+			if(v < lLimit)
+				v = lLimit;
+			v = (v - lLimit) / (uLimit - lLimit);
+			h[i] = Math.round(signalHeight * v);
+		}
+		return h;
+	}
+
+	/**
+	 * Like drawInto() with the Histogram style, but writes the pixels
+	 * within the given tile directly. Each period is drawn from the
+	 * same precalculated heights in every panel in which it appears.
+	 */
+	private void rasterInto(Actogram actogram, int[] h, int[] pixels, Rectangle tile, int argb) {
+		int spp = actogram.SAMPLES_PER_PERIOD;
+		int nlines = periods + 1;
+
+		for(int l = 0; l < nlines; l++) {
+			int y = (l + 1) * baselineDist;
+			if(y < tile.y || y - signalHeight >= tile.y + tile.height)
+				continue;
+			for(int c = 0; c < ppl; c++) {
+				int d = l - 1 + c;
+				if(d < 0 || d >= periods)
+					continue;
+				int x = c * spp + 1;
+				if(x + spp <= tile.x || x >= tile.x + tile.width)
+					continue;
+
+				int offs = spp * d;
+				int length = offs + spp < actogram.size() ?
+						spp : actogram.size() - offs;
+				// baseline
+				fill(pixels, tile, x, y, length, 1, 0xff000000);
+
+				// signal, row by row; sample i covers y - h[i] to y - 1
+				int from = Math.max(0, tile.x - x);
+				int to = Math.min(length, tile.x + tile.width - x);
+				int y0 = Math.max(y - signalHeight, tile.y);
+				int y1 = Math.min(y, tile.y + tile.height);
+				for(int yy = y0; yy < y1; yy++) {
+					int minHeight = y - yy;
+					int row = (yy - tile.y) * tile.width + x - tile.x;
+					for(int i = from; i < to; i++)
+						if(h[offs + i] >= minHeight)
+							pixels[row + i] = argb;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills the given rectangle, in image coordinates, within the
+	 * pixels of tile.
+	 */
+	private static void fill(int[] pixels, Rectangle tile, int x, int y, int w, int h, int argb) {
+		int x0 = Math.max(x, tile.x), x1 = Math.min(x + w, tile.x + tile.width);
+		int y0 = Math.max(y, tile.y), y1 = Math.min(y + h, tile.y + tile.height);
+		for(int yy = y0; yy < y1; yy++) {
+			int row = (yy - tile.y) * tile.width - tile.x;
+			for(int xx = x0; xx < x1; xx++)
+				pixels[row + xx] = argb;
+		}
 	}
 
 	/**
@@ -154,14 +512,6 @@ public class ActogramProcessor {
 		return p;
 	}
 
-	private BufferedImage createProcessor() {
-		BufferedImage bImage = new BufferedImage(width, height,
-			BufferedImage.TYPE_INT_ARGB);
-
-		clearBackground(new GraphicsBackend(bImage.getGraphics()));
-		return bImage;
-	}
-
 	public void clearBackground(DrawingBackend ba) {
 		ba.moveTo(0, 0);
 
@@ -183,22 +533,34 @@ public class ActogramProcessor {
 	}
 
 	public void drawInto(Actogram actogram, Style style, Color color) {
+		drawInto(actogram, style, color, null);
+	}
+
+	/**
+	 * Draws the periods of the given actogram which intersect clip, or
+	 * all periods if clip is null.
+	 */
+	private void drawInto(Actogram actogram, Style style, Color color, Rectangle clip) {
 		int spp = actogram.SAMPLES_PER_PERIOD;
 		int nlines = periods + 1;
 
 		for(int l = 0; l < nlines; l++) {
+			int y = (l + 1) * baselineDist;
+			if(clip != null && (y < clip.y || y - signalHeight >= clip.y + clip.height))
+				continue;
 			for(int c = 0; c < ppl; c++) {
 				int d = l - 1 + c;
 				if(d < 0 || d >= periods)
 					continue;
-				int y = (l + 1) * baselineDist;
 				int x = c * spp + 1;
-				drawPeriod(actogram, d, style, color, x, y);
+				if(clip != null && (x + spp <= clip.x || x >= clip.x + clip.width))
+					continue;
+				drawPeriod(actogram, d, style, color, x, y, clip);
 			}
 		}
 	}
 
-	private void drawPeriod(Actogram actogram, int d, Style style, Color color, int x, int y) {
+	private void drawPeriod(Actogram actogram, int d, Style style, Color color, int x, int y, Rectangle clip) {
 		DrawingBackend g = style.getBackend();
 		int spp = actogram.SAMPLES_PER_PERIOD;
 
@@ -209,10 +571,19 @@ public class ActogramProcessor {
 		g.setLineColor(0, 0, 0, 255);
 		g.moveTo(x, y);
 		g.lineTo(x + length - 1, y);
+
+		// only the samples within clip, plus one on either side
+		int from = 0, to = length;
+		if(clip != null) {
+			from = Math.max(0, clip.x - x - 1);
+			to = Math.min(length, clip.x + clip.width - x + 1);
+		}
+		x += from;
+
 		// draw signal
 		g.setFillColor(color.getRGB());
 		style.newline(x, y);
-		for(int i = offs; i < offs + length; i++, x++) {
+		for(int i = offs + from; i < offs + to; i++, x++) {
 			float v = actogram.get(i);
 			// Clamp it to [lLimit, uLimit]
 			if(v > uLimit)
@@ -226,6 +597,23 @@ public class ActogramProcessor {
 		}
 	}
 
+	private class Overlay {
+		final Actogram actogram;
+		final Color color;
+		private int[] heights;
+
+		Overlay(Actogram actogram, Color color) {
+			this.actogram = actogram;
+			this.color = color;
+		}
+
+		synchronized int[] getHeights() {
+			if(heights == null)
+				heights = calculateHeights(actogram);
+			return heights;
+		}
+	}
+
 	public static interface Style {
 		public void newline(int x, int y);
 		public void newData(int d);
@@ -23,6 +23,7 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 
 import actoj.core.Actogram;
+import actoj.core.GroupReduction;
 import actoj.util.Filters;
 
 public class CalculateDialog {
@@ -58,9 +59,15 @@ public class CalculateDialog {
 		private JComboBox operationBox;
 		private JTextField kernelField;
 		private JButton kernelButton;
+		private JTextField weightsField;
+		private JTextField fractionField;
 
 		private ArrayList<JComponent> smoothComponents =
 				new ArrayList<JComponent>();
+		private ArrayList<JComponent> weightComponents =
+				new ArrayList<JComponent>();
+		private ArrayList<JComponent> trimComponents =
+				new ArrayList<JComponent>();
 
 		private CustomWindow win;
 
@@ -82,7 +89,8 @@ public class CalculateDialog {
 
 			c.gridx++;
 			operationBox = new JComboBox(new String[] {
-				"Average", "Sum", "Smooth" });
+				"Average", "Sum", "Smooth", "Weighted average",
+				"Median", "Trimmed mean", "Group statistics" });
 			getContentPane().add(operationBox, c);
 
 
@@ -111,6 +119,34 @@ public class CalculateDialog {
 			smoothComponents.add(kernelButton);
 			getContentPane().add(kernelButton, c);
 
+
+			c.gridy++;
+			c.gridx = 0;
+			l = new JLabel("Weights:");
+			weightComponents.add(l);
+			getContentPane().add(l, c);
+
+			c.gridx++;
+			weightsField = new JTextField(20);
+			StringBuffer weights = new StringBuffer();
+			for(int i = 0; i < win.canvas.getActograms().size(); i++)
+				weights.append("1 ");
+			weightsField.setText(weights.toString().trim());
+			weightComponents.add(weightsField);
+			getContentPane().add(weightsField, c);
+
+
+			c.gridy++;
+			c.gridx = 0;
+			l = new JLabel("Trimmed fraction:");
+			trimComponents.add(l);
+			getContentPane().add(l, c);
+
+			c.gridx++;
+			fractionField = new JTextField("0.1", 5);
+			trimComponents.add(fractionField);
+			getContentPane().add(fractionField, c);
+
 			JPanel p = new JPanel(new FlowLayout());
 			JButton b = new JButton("Cancel");
 			b.addActionListener(new ActionListener() {
@@ -125,8 +161,8 @@ public class CalculateDialog {
 				@Override
 				public void actionPerformed(ActionEvent e) {
 					try {
-						calculate();
-						dispose();
+						if(calculate())
+							dispose();
 					} catch(Exception ex) {
 						IJ.error(ex.getClass() + ": " +
 							ex.getMessage());
@@ -157,6 +193,10 @@ public class CalculateDialog {
 			int idx = operationBox.getSelectedIndex();
 			for(JComponent c : smoothComponents)
 				c.setEnabled(idx == 2);
+			for(JComponent c : weightComponents)
+				c.setEnabled(idx == 3);
+			for(JComponent c : trimComponents)
+				c.setEnabled(idx == 5);
 		}
 
 		private String arrayToString(float[] arr) {
@@ -166,43 +206,65 @@ public class CalculateDialog {
 			return buff.toString().trim();
 		}
 
-		private void calculate() {
+		/**
+		 * Calculates the selected operation and adds the results to the
+		 * tree. Returns false if the input was invalid, which is reported
+		 * to the user.
+		 */
+		private boolean calculate() {
 			int opIndex = operationBox.getSelectedIndex();
 
-			ArrayList<ActogramCanvas> acs;
-			List<Actogram> actograms;
-			Actogram result;
-			switch(opIndex) {
-				case 0: // average
-					acs = win.canvas.getActograms();
-					actograms = new ArrayList<Actogram>();
-					for(ActogramCanvas ac : acs)
-						actograms.add(
-							ac.processor.original);
-					result = Actogram.average(actograms);
-					win.tree.addCalculated(result);
-					break;
-				case 1: // sum
-					acs = win.canvas.getActograms();
-					actograms = new ArrayList<Actogram>();
-					for(ActogramCanvas ac : acs)
-						actograms.add(
-							ac.processor.original);
-					result = Actogram.sum(actograms);
-					win.tree.addCalculated(result);
-					break;
-				case 2: // smooth
-					acs = win.canvas.getActograms();
-					actograms = new ArrayList<Actogram>();
-					float[] kernel = getKernel(kernelField.getText());
-					for(ActogramCanvas ac : acs) {
-						Actogram ag =
-							ac.processor.original;
-						result = ag.convolve(kernel);
+			List<Actogram> actograms = new ArrayList<Actogram>();
+			for(ActogramCanvas ac : win.canvas.getActograms())
+				actograms.add(ac.processor.original);
+
+			try {
+				Actogram result;
+				switch(opIndex) {
+					case 0: // average
+						result = Actogram.average(actograms);
 						win.tree.addCalculated(result);
-					}
-					break;
+						break;
+					case 1: // sum
+						result = Actogram.sum(actograms);
+						win.tree.addCalculated(result);
+						break;
+					case 2: // smooth
+						float[] kernel = getKernel(kernelField.getText());
+						for(Actogram ag : actograms) {
+							result = ag.convolve(kernel);
+							win.tree.addCalculated(result);
+						}
+						break;
+					case 3: // weighted average
+						float[] weights = getKernel(weightsField.getText());
+						result = GroupReduction.weightedAverage(actograms, weights);
+						win.tree.addCalculated(result);
+						break;
+					case 4: // median
+						result = GroupReduction.median(actograms);
+						win.tree.addCalculated(result);
+						break;
+					case 5: // trimmed mean
+						double fraction = Double.parseDouble(
+							fractionField.getText().trim());
+						result = GroupReduction.trimmedMean(actograms, fraction);
+						win.tree.addCalculated(result);
+						break;
+					case 6: // mean, SEM, median and quartiles
+						GroupReduction.Statistics stats =
+							GroupReduction.statistics(actograms);
+						for(Actogram a : stats.toArray())
+							win.tree.addCalculated(a);
+						break;
+				}
+			} catch(IllegalArgumentException ex) {
+				// also invalid numbers (NumberFormatException)
+				IJ.error(ex.getMessage());
+				ex.printStackTrace();
+				return false;
 			}
+			return true;
 		}
 
 		private float[] getKernel(String text) {
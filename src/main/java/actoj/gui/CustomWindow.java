@@ -55,7 +55,7 @@ public class CustomWindow extends JFrame
 
 	@Override
 	public void externalVariablesChanged() {
-		canvas.update();
+		canvas.update(ImageCanvas.CANVAS);
 	}
 
 	@Override
@@ -11,22 +11,66 @@ import java.awt.TextField;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 import actoj.activitypattern.OnOffset;
 import actoj.core.Actogram;
 import actoj.core.TimeInterval;
 import actoj.core.TimeInterval.Units;
+import actoj.periodogram.BatchPeriodogram;
+import actoj.periodogram.Periodogram;
 
 @SuppressWarnings("serial")
 public class ImageCanvas extends JPanel {
 
 	public static final int PADDING = 20;
 
+	/*
+	 * What an update of the displayed actograms needs to recompute,
+	 * from cheap to expensive; each includes the ones before.
+	 */
+
+	/** Only the grid of the canvases, e.g. for a new number of columns. */
+	public static final int LAYOUT = 0;
+
+	/** The canvases around the rendered actograms, e.g. for new units. */
+	public static final int CANVAS = 1;
+
+	/** The rendering, e.g. for new limits, but not the downsampled data. */
+	public static final int RENDERING = 2;
+
+	/** Everything, including the downsampled data, e.g. for a new zoom. */
+	public static final int ALL = 3;
+
+	/** Incremented for each update, to discard outdated ones. */
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/** The changes of the update which is not applied yet. */
+	private int pendingChanges = LAYOUT;
+
+	/** The processors which are being built for the latest update. */
+	private final ArrayList<Future<ActogramProcessor>> building =
+			new ArrayList<Future<ActogramProcessor>>();
+
+	/** The actograms to display, as last passed to display(). */
+	private List<Actogram> selection = new ArrayList<Actogram>();
+
+	private ActogramCanvas.Mode mode;
+
 	private ArrayList<ActogramCanvas> actograms =
 			new ArrayList<ActogramCanvas>();
 
@@ -43,6 +87,7 @@ public class ImageCanvas extends JPanel {
 	private int ppl = 2;
 	private float whRatio = 2f / 3f;
 	private Units fpUnits = Units.HOURS;
+	private boolean envelope = false;
 
 	private ActogramCanvas.Feedback feedback;
 
@@ -271,8 +316,7 @@ public class ImageCanvas extends JPanel {
 		double pLevel = 0.05;
 
 		GenericDialog gd = new GenericDialog("Create Periodogram");
-		String[] methods = new String[] {
-			"Fourier", "Chi-Square", "Lomb-Scargle" };
+		String[] methods = BatchPeriodogram.METHODS;
 		gd.addChoice("Method", methods, methods[methodIdx]);
 		Vector<?> v = gd.getChoices();
 		final Choice c = (Choice)v.get(v.size() - 1);
@@ -287,10 +331,12 @@ public class ImageCanvas extends JPanel {
 		c.addItemListener(new ItemListener() {
 			@Override
 			public void itemStateChanged(ItemEvent e) {
-				tf.setEnabled(c.getSelectedIndex() != 0);
+				int idx = c.getSelectedIndex();
+				tf.setEnabled(idx != 0 && idx != 3);
 			}
 		});
 		tf.setEnabled(false);
+		gd.addCheckbox("Results table only", false);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
@@ -302,8 +348,25 @@ public class ImageCanvas extends JPanel {
 		final float sig = (float)gd.getNextNumber();
 		final int steps = (int)gd.getNextNumber();
 		final double pV = gd.getNextNumber();
+		final boolean tableOnly = gd.getNextBoolean();
 		final TimeInterval fi = new TimeInterval(fp, a.unit);
 		final TimeInterval ti = new TimeInterval(tp, a.unit);
+		if(tableOnly) {
+			final BatchPeriodogram.Config config = new BatchPeriodogram.Config(
+				m, fi, ti, sig, steps, pV);
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						calculatePeriodogramTable(config);
+					} catch(Exception e) {
+						IJ.error(e.getClass() + ": " + e.getMessage());
+						e.printStackTrace();
+					}
+				}
+			}.start();
+			return;
+		}
 		new Thread() {
 			@Override
 			public void run() {
@@ -322,7 +385,48 @@ public class ImageCanvas extends JPanel {
 		}.start();
 	}
 
+	/**
+	 * Calculates the periodograms of all selected actograms in one batch,
+	 * and lists their highest peaks in a results table. Actograms with
+	 * identical selections are processed together.
+	 */
+	private void calculatePeriodogramTable(BatchPeriodogram.Config config) {
+		LinkedHashMap<String, List<Actogram>> groups =
+			new LinkedHashMap<String, List<Actogram>>();
+		LinkedHashMap<String, int[]> ranges =
+			new LinkedHashMap<String, int[]>();
+		for(ActogramCanvas ac : actograms) {
+			int[] sel = ac.getSelectionInOriginal();
+			if(sel == null)
+				continue;
+			String key = sel[0] + "-" + sel[1];
+			List<Actogram> group = groups.get(key);
+			if(group == null) {
+				group = new ArrayList<Actogram>();
+				groups.put(key, group);
+				ranges.put(key, sel);
+			}
+			group.add(ac.processor.original);
+		}
+
+		ArrayList<BatchPeriodogram.Result> results =
+			new ArrayList<BatchPeriodogram.Result>();
+		for(String key : groups.keySet()) {
+			int[] sel = ranges.get(key);
+			BatchPeriodogram.Result[] r = BatchPeriodogram.calculate(
+				groups.get(key), sel[0], sel[1], config,
+				Periodogram.IJ_PROGRESS);
+			results.addAll(Arrays.asList(r));
+		}
+		if(results.isEmpty())
+			return;
+		BatchPeriodogram.toResultsTable(
+			results.toArray(new BatchPeriodogram.Result[results.size()]))
+			.show("Periodogram (" + BatchPeriodogram.METHODS[config.method] + ")");
+	}
+
 	public void setCanvasMode(ActogramCanvas.Mode mode) {
+		this.mode = mode;
 		for(ActogramCanvas ac : actograms)
 			ac.setMode(mode);
 		fireModeChanged(mode);
@@ -331,7 +435,7 @@ public class ImageCanvas extends JPanel {
 	public void setMaxColumns(int n) {
 		if(this.maxColumns != n) {
 			this.maxColumns = n;
-			update();
+			update(LAYOUT);
 		}
 	}
 
@@ -348,7 +452,7 @@ public class ImageCanvas extends JPanel {
 	public void setZoom(double zoom) {
 		if(this.zoomf != zoom) {
 			this.zoomf = zoom;
-			update();
+			update(ALL);
 		}
 	}
 
@@ -363,7 +467,7 @@ public class ImageCanvas extends JPanel {
 	public void setPeriodsPerLine(int ppl) {
 		if(this.ppl != ppl) {
 			this.ppl = ppl;
-			update();
+			update(RENDERING);
 		}
 	}
 
@@ -378,14 +482,14 @@ public class ImageCanvas extends JPanel {
 	public void setLowerLimit(float lLimit) {
 		if(this.lLimit != lLimit) {
 			this.lLimit = lLimit;
-			update();
+			update(RENDERING);
 		}
 	}
 
 	public void setUpperLimit(float uLimit) {
 		if(this.uLimit != uLimit) {
 			this.uLimit = uLimit;
-			update();
+			update(RENDERING);
 		}
 	}
 
@@ -393,14 +497,34 @@ public class ImageCanvas extends JPanel {
 		return whRatio;
 	}
 
+	public boolean isEnvelope() {
+		return envelope;
+	}
+
+	/**
+	 * Whether to show the minimum and maximum of the data within each
+	 * displayed sample, which preserves peaks when zoomed out.
+	 */
+	public void setEnvelope(boolean envelope) {
+		if(this.envelope != envelope) {
+			this.envelope = envelope;
+			update(RENDERING);
+		}
+	}
+
 	public void setWHRatio(float whRatio) {
 		if(this.whRatio != whRatio) {
 			this.whRatio = whRatio;
-			update();
+			update(RENDERING);
 		}
 	}
 
-	public void set(int ppl, float uLimit, float lLimit, int maxColumns, int nSubdivisions, float whRatio, Units fpUnits) {
+	public void set(int ppl, float uLimit, float lLimit, int maxColumns, int nSubdivisions, float whRatio, Units fpUnits, boolean envelope) {
+		int changes = LAYOUT;
+		if(this.ppl != ppl || this.uLimit != uLimit || this.lLimit != lLimit || this.whRatio != whRatio || this.envelope != envelope)
+			changes = RENDERING;
+		else if(this.nSubdivisions != nSubdivisions || this.fpUnits != fpUnits)
+			changes = CANVAS;
 		this.ppl = ppl;
 		this.uLimit = uLimit;
 		this.lLimit = lLimit;
@@ -408,7 +532,8 @@ public class ImageCanvas extends JPanel {
 		this.nSubdivisions = nSubdivisions;
 		this.whRatio = whRatio;
 		this.fpUnits = fpUnits;
-		update();
+		this.envelope = envelope;
+		update(changes);
 	}
 
 	public void addActogram(ActogramCanvas a) {
@@ -439,41 +564,143 @@ public class ImageCanvas extends JPanel {
 			addActogram(ac);
 	}
 
+	/**
+	 * Displays the given actograms. Canvases of actograms which are
+	 * already displayed are reused, the others are created in the
+	 * background.
+	 */
 	public void display(java.util.List<Actogram> selected) {
+		selection = new ArrayList<Actogram>(selected);
+		schedule(pendingChanges);
+	}
+
+	public void update() {
+		update(ALL);
+	}
+
+	/**
+	 * Updates the displayed actograms after a change of the display
+	 * settings, recomputing only what the given change requires: One of
+	 * LAYOUT, CANVAS, RENDERING and ALL. New canvases are created in the
+	 * background, and replace the displayed ones on the event dispatch
+	 * thread, unless another update was requested meanwhile; that one
+	 * then includes the changes of this one.
+	 */
+	public void update(int changes) {
+		changes = Math.max(changes, pendingChanges);
+		if(changes == LAYOUT) {
+			relayout(new ArrayList<ActogramCanvas>(actograms));
+			return;
+		}
+		schedule(changes);
+	}
+
+	/**
+	 * Builds the canvases for the current selection on the
+	 * RenderWorkers, cancelling the ones of a previous, outdated update.
+	 */
+	private void schedule(int changes) {
+		pendingChanges = changes;
+
+		final int gen = generation.incrementAndGet();
+		synchronized(building) {
+			for(Future<ActogramProcessor> f : building)
+				f.cancel(true);
+			building.clear();
+		}
+
+		final int ch = changes;
+		final double zoomf = this.zoomf;
+		final float uLimit = this.uLimit, lLimit = this.lLimit;
+		final int ppl = this.ppl, nSubdivisions = this.nSubdivisions;
+		final float whRatio = this.whRatio;
+		final Units fpUnits = this.fpUnits;
+		final boolean envelope = this.envelope;
+
 		HashMap<Actogram, ActogramCanvas> displayed
 			= new HashMap<Actogram, ActogramCanvas>();
 		for(ActogramCanvas a : actograms)
 			displayed.put(a.processor.original, a);
 
-		ArrayList<ActogramCanvas> ac = new ArrayList<ActogramCanvas>();
-		for(Actogram a : selected) {
-			if(displayed.containsKey(a))
-				ac.add(displayed.get(a));
-			else
-				ac.add(new ActogramCanvas(
-					a, zoomf, uLimit, lLimit, ppl,
-					nSubdivisions, whRatio,
-					fpUnits, feedback));
+		// the canvases themselves are Swing components, which are
+		// only created on the event dispatch thread
+		final ArrayList<ActogramCanvas> old = new ArrayList<ActogramCanvas>();
+		final ArrayList<Future<ActogramProcessor>> jobs =
+				new ArrayList<Future<ActogramProcessor>>();
+		for(final Actogram a : selection) {
+			final ActogramCanvas o = displayed.get(a);
+			old.add(o);
+			jobs.add(RenderWorkers.EXECUTOR.submit(new Callable<ActogramProcessor>() {
+				@Override
+				public ActogramProcessor call() {
+					if(o == null || ch == ALL)
+						return new ActogramProcessor(a, zoomf,
+							uLimit, lLimit, ppl, whRatio, envelope);
+					if(ch == RENDERING)
+						return new ActogramProcessor(o.processor, uLimit, lLimit, ppl, whRatio, envelope);
+					return o.processor;
+				}
+			}));
 		}
-		clear();
-		addAll(ac);
-		invalidate();
-		synchronized(getTreeLock()) {
-			validateTree();
+		synchronized(building) {
+			building.addAll(jobs);
 		}
-		getParent().doLayout();
-		repaint();
-	}
 
-	public void update() {
-		ArrayList<ActogramCanvas> ac = new ArrayList<ActogramCanvas>();
-		for(ActogramCanvas old : actograms)
-			ac.add(new ActogramCanvas(
-				old.processor.original, zoomf, uLimit, lLimit, ppl,
-				nSubdivisions, whRatio, fpUnits, feedback));
+		RenderWorkers.UPDATER.execute(new Runnable() {
+			@Override
+			public void run() {
+				final ArrayList<ActogramProcessor> ap = new ArrayList<ActogramProcessor>();
+				try {
+					for(Future<ActogramProcessor> f : jobs)
+						ap.add(f.get());
+				} catch(CancellationException e) {
+					return;
+				} catch(InterruptedException e) {
+					return;
+				} catch(ExecutionException e) {
+					Throwable cause = e.getCause();
+					IJ.error(cause.getClass() + ": " + cause.getMessage());
+					cause.printStackTrace();
+					return;
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if(generation.get() != gen)
+							return;
+						pendingChanges = LAYOUT;
+						synchronized(building) {
+							building.clear();
+						}
+						ArrayList<ActogramCanvas> ac = new ArrayList<ActogramCanvas>();
+						for(int i = 0; i < ap.size(); i++) {
+							ActogramCanvas o = old.get(i);
+							if(o != null && ch == LAYOUT)
+								ac.add(o);
+							else
+								ac.add(new ActogramCanvas(ap.get(i),
+									nSubdivisions, fpUnits, feedback));
+						}
+						HashSet<ActogramProcessor> used = new HashSet<ActogramProcessor>(ap);
+						for(ActogramCanvas o : actograms)
+							if(!used.contains(o.processor))
+								o.processor.dispose();
+						relayout(ac);
+					}
+				});
+			}
+		});
+	}
 
+	private void relayout(ArrayList<ActogramCanvas> ac) {
+		ActogramCanvas.Mode mode = this.mode;
+		if(mode == null && !actograms.isEmpty())
+			mode = actograms.get(0).getMode();
 		clear();
 		addAll(ac);
+		if(mode != null)
+			for(ActogramCanvas a : ac)
+				a.setMode(mode);
 
 		invalidate();
 		synchronized(getTreeLock()) {
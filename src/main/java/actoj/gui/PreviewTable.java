@@ -1,19 +1,21 @@
 package actoj.gui;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
 
 import javax.swing.JTable;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.TableModel;
 
+import actoj.io.MappedTextFile;
+
 @SuppressWarnings("serial")
 public class PreviewTable extends JTable {
 
 	public static final char DEFAULT_DELIM = '\t';
 
+	/** The maximum number of lines shown in the preview. */
+	public static final int PREVIEW_LINES = 500;
+
 	public PreviewTable(String filename) throws IOException {
 		this(filename, DEFAULT_DELIM);
 	}
@@ -27,19 +29,41 @@ public class PreviewTable extends JTable {
 		setModel(new PreviewTableModel(filename, delim));
 	}
 
+	/**
+	 * Returns the total number of lines in the file, which may be
+	 * more than the number of rows shown in the preview.
+	 */
+	public int getLineCount() {
+		return ((PreviewTableModel)getModel()).lineCount;
+	}
+
 	private static final class PreviewTableModel implements TableModel {
 
 		final String[] lines;
 		final int columnCount;
+		final int lineCount;
 		final char delim;
 
 		public PreviewTableModel(String file, char delim) throws IOException {
-			this(readLines(file), delim);
+			MappedTextFile in = new MappedTextFile(file);
+			try {
+				this.lineCount = in.countLines();
+				this.lines = in.readLines(PREVIEW_LINES);
+			} finally {
+				in.close();
+			}
+			this.delim = delim;
+			this.columnCount = countColumns(lines, delim);
 		}
 
 		public PreviewTableModel(String[] lines, char delim) {
 			this.lines = lines;
+			this.lineCount = lines.length;
 			this.delim = delim;
+			this.columnCount = countColumns(lines, delim);
+		}
+
+		private static int countColumns(String[] lines, char delim) {
 			int cols = 0;
 			for(int i = 0; i < lines.length; i++) {
 				lines[i] = lines[i] + delim;
@@ -47,7 +71,7 @@ public class PreviewTable extends JTable {
 				if(c > cols)
 					cols = c;
 			}
-			this.columnCount = cols;
+			return cols;
 		}
 
 		@Override
@@ -113,20 +137,6 @@ public class PreviewTable extends JTable {
 			}
 			return -1;
 		}
-
-		public static String[] readLines(String filename) throws IOException {
-
-			ArrayList<String> data = new ArrayList<String>();
-			BufferedReader reader = new BufferedReader(
-				new FileReader(filename));
-			String line = null;
-			while((line = reader.readLine()) != null)
-				data.add(line);
-			reader.close();
-			String[] ret = new String[data.size()];
-			data.toArray(ret);
-			return ret;
-		}
 	}
 }
 
@@ -13,6 +13,7 @@ public class PropertiesDialog {
 		int cols = ic.getMaxColumns();
 		int subd = ic.getCalibrationSubdivisions();
 		float whRatio = ic.getWHRatio();
+		boolean envelope = ic.isEnvelope();
 
 		GenericDialog gd = new GenericDialog("Edit Properties");
 		gd.addNumericField("Number of plots", ppl, 0);
@@ -26,6 +27,7 @@ public class PropertiesDialog {
 			units[i] = Units.values()[i].toString();
 		String u = Units.HOURS.toString();
 		gd.addChoice("Unit of freerunning period", units, u);
+		gd.addCheckbox("Show min/max envelope", envelope);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
@@ -38,8 +40,9 @@ public class PropertiesDialog {
 		whRatio = (float)gd.getNextNumber();
 		Units fpUnit = Units.values()[
 			gd.getNextChoiceIndex()];
+		envelope = gd.getNextBoolean();
 
-		ic.set(ppl, ul, ll, cols, subd, whRatio, fpUnit);
+		ic.set(ppl, ul, ll, cols, subd, whRatio, fpUnit, envelope);
 	}
 }
 
@@ -0,0 +1,43 @@
+package actoj.gui;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The daemon threads which create canvases and render tiles in the
+ * background, one per core, and the thread which collects the results
+ * of canvas updates, shared by all windows.
+ */
+class RenderWorkers {
+
+	static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+		Runtime.getRuntime().availableProcessors(),
+		new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ActogramJ rendering " +
+					count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/**
+	 * Waits for the processors of each canvas update, one update after
+	 * the other, off the event dispatch thread.
+	 */
+	static final ExecutorService UPDATER = Executors.newSingleThreadExecutor(
+		new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ActogramJ canvas update");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private RenderWorkers() {}
+}
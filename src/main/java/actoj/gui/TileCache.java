@@ -0,0 +1,70 @@
+package actoj.gui;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of rendered actogram tiles. It is shared by all
+ * ActogramProcessors and bounded by the memory of the cached images:
+ * When the limit is exceeded, the tiles which were painted least
+ * recently, i.e. which scrolled out of view first, are dropped.
+ */
+class TileCache {
+
+	private final long maxBytes;
+
+	private long bytes = 0;
+
+	private final LinkedHashMap<Long, BufferedImage> tiles =
+		new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true);
+
+	TileCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the key of the tile at (tx, ty) of the given owner.
+	 */
+	static long key(int owner, int tx, int ty) {
+		return ((long)owner << 40) | ((long)ty << 20) | tx;
+	}
+
+	synchronized BufferedImage get(long key) {
+		return tiles.get(key);
+	}
+
+	synchronized void put(long key, BufferedImage tile) {
+		BufferedImage old = tiles.put(key, tile);
+		if(old != null)
+			bytes -= sizeOf(old);
+		bytes += sizeOf(tile);
+
+		// keep at least the tile which was just added
+		Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+		while(bytes > maxBytes && tiles.size() > 1) {
+			BufferedImage evicted = it.next().getValue();
+			it.remove();
+			bytes -= sizeOf(evicted);
+		}
+	}
+
+	/**
+	 * Removes all tiles of the given owner.
+	 */
+	synchronized void removeAll(int owner) {
+		Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Long, BufferedImage> e = it.next();
+			if((e.getKey() >>> 40) == owner) {
+				bytes -= sizeOf(e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	private static long sizeOf(BufferedImage tile) {
+		return 4L * tile.getWidth() * tile.getHeight();
+	}
+}
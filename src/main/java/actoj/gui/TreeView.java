@@ -24,6 +24,7 @@ import javax.swing.tree.TreePath;
 import actoj.core.Actogram;
 import actoj.core.ActogramGroup;
 import actoj.core.ExternalVariable;
+import actoj.io.BinaryActogramFile;
 import ij.IJ;
 import ij.gui.GenericDialog;
 import ij.io.SaveDialog;
@@ -78,6 +79,18 @@ public class TreeView extends JPanel implements TreeSelectionListener {
 		});
 		popup.add(item);
 
+		item = new JMenuItem("Save actograms");
+		item.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if(actogramGroupClicked != null) {
+					save(actogramGroupClicked);
+					actogramGroupClicked = null;
+				}
+			}
+		});
+		popup.add(item);
+
 		popup.addSeparator();
 
 		item = new JMenuItem("Add environmental bar");
@@ -288,6 +301,19 @@ public class TreeView extends JPanel implements TreeSelectionListener {
 		}
 	}
 
+	public void save(ActogramGroup ag) {
+		SaveDialog sd = new SaveDialog("Save actograms", ag.name,
+				BinaryActogramFile.EXTENSION);
+		if(sd.getFileName() == null)
+			return;
+		try {
+			BinaryActogramFile.write(ag, sd.getDirectory() + sd.getFileName());
+		} catch(Exception ex) {
+			IJ.error(ex.getMessage());
+			ex.printStackTrace();
+		}
+	}
+
 	public void changeMarkerColor(Actogram ag) {
 		int nMarkers = ag.nMarkers();
 		if(nMarkers == 0) {
@@ -3,6 +3,7 @@ package actoj.gui.actions;
 import ij.IJ;
 import ij.io.OpenDialog;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.GridBagConstraints;
@@ -15,27 +16,47 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTable;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
 
 import actoj.ActogramJ_;
 import actoj.Settings;
+import actoj.core.ActogramGroup;
+import actoj.core.FloatStorage;
 import actoj.core.TimeInterval;
 import actoj.gui.PreviewTable;
 import actoj.gui.TreeView;
 import actoj.io.ActogramReader;
+import actoj.io.BinaryActogramFile;
 
 @SuppressWarnings("serial")
 public class OpenAction extends AbstractAction {
@@ -78,11 +99,28 @@ public class OpenAction extends AbstractAction {
 			+ File.separator;
 		OpenDialog.setLastDirectory(dir);
 
+		if(allBinary(files)) {
+			FloatStorage.Type type = FloatStorage.Type.values()[
+				Integer.parseInt(Settings.get(Settings.STORAGE))];
+			ImportDialog id = new ImportDialog(files, treeview,
+				createBinaryImporter(type));
+			id.setVisible(true);
+			id.start();
+			return;
+		}
+
 		PreviewDialog pd = new PreviewDialog(files, treeview);
 		pd.pack();
 		pd.setVisible(true);
 	}
 
+	private static boolean allBinary(File[] files) {
+		for(File f : files)
+			if(!BinaryActogramFile.isBinaryFile(f.getName()))
+				return false;
+		return true;
+	}
+
 // 	public void actionPerformed(ActionEvent e) {
 // 		OpenDialog od = new OpenDialog("Open...", "");
 // 		String dir = od.getDirectory();
@@ -105,10 +143,15 @@ public class OpenAction extends AbstractAction {
 
 		private TimeInterval.Units calUnit;
 
+		private FloatStorage.Type storage;
+
+		private boolean cache;
+
 		private PreviewTable preview;
 		private JTextField startRowField, endRowField,
 			startColField, endColField, sppField, calValueField;
-		private JComboBox calUnitBox, delimBox;
+		private JComboBox calUnitBox, delimBox, storageBox;
+		private JCheckBox cacheBox;
 
 		public PreviewDialog(File[] files, TreeView treeview) {
 			super();
@@ -132,6 +175,9 @@ public class OpenAction extends AbstractAction {
 
 			calUnit  = TimeInterval.Units.values()[
 				i(Settings.get(Settings.CAL_UNIT))];
+			storage  = FloatStorage.Type.values()[
+				i(Settings.get(Settings.STORAGE))];
+			cache    = i(Settings.get(Settings.CACHE)) != 0;
 
 			GridBagLayout gridbag = new GridBagLayout();
 			GridBagConstraints c = new GridBagConstraints();
@@ -178,7 +224,7 @@ public class OpenAction extends AbstractAction {
 			if(endCol == -1)
 				endCol = preview.getColumnCount();
 			if(endRow == -1)
-				endRow = preview.getRowCount();
+				endRow = preview.getLineCount();
 
 			c.weighty = 0;
 			c.weightx = 0.5;
@@ -214,7 +260,7 @@ public class OpenAction extends AbstractAction {
 			c.gridx = 0;
 			c.gridy++;
 			c.gridwidth = GridBagConstraints.REMAINDER;
-			JPanel calp = new JPanel(new GridLayout(2, 3, 2, 2));
+			JPanel calp = new JPanel(new GridLayout(3, 3, 2, 2));
 			calp.add(new JLabel("Samples per period"));
 			sppField = createNumberField(spp);
 			calp.add(sppField);
@@ -226,6 +272,14 @@ public class OpenAction extends AbstractAction {
 				TimeInterval.Units.values());
 			calUnitBox.setSelectedItem(calUnit);
 			calp.add(calUnitBox);
+			calp.add(new JLabel("Data storage"));
+			storageBox = new JComboBox(FloatStorage.Type.values());
+			storageBox.setSelectedItem(storage);
+			calp.add(storageBox);
+			cacheBox = new JCheckBox("Cache as .actoj", cache);
+			cacheBox.setToolTipText("Stores the imported data next to " +
+				"each file, to open it faster next time");
+			calp.add(cacheBox);
 			calp.setBorder(BorderFactory.createTitledBorder(
 				"Calibration"));
 			gridbag.setConstraints(calp, c);
@@ -263,6 +317,8 @@ public class OpenAction extends AbstractAction {
 			spp      = i(sppField.getText());
 			calValue = i(calValueField.getText());
 			calUnit  = (TimeInterval.Units)calUnitBox.getSelectedItem();
+			storage  = (FloatStorage.Type)storageBox.getSelectedItem();
+			cache    = cacheBox.isSelected();
 		}
 
 		private static final int i(String s) {
@@ -285,7 +341,7 @@ public class OpenAction extends AbstractAction {
 
 		public void saveDefaults() {
 			try {
-				int rts = endRow == preview.getRowCount()
+				int rts = endRow == preview.getLineCount()
 					? -1 : endRow;
 				int cts = endCol == preview.getColumnCount()
 					? -1 : endCol;
@@ -296,18 +352,41 @@ public class OpenAction extends AbstractAction {
 				Settings.set(Settings.SPP, spp);
 				Settings.set(Settings.CAL_UNIT, calUnit.ordinal());
 				Settings.set(Settings.CAL_VALUE, calValue);
+				Settings.set(Settings.STORAGE, storage.ordinal());
+				Settings.set(Settings.CACHE, cache ? 1 : 0);
 			} catch(IOException e) {
 				IJ.error("Error writing defaults:\n" +
 					e.getMessage());
 			}
 		}
 
-		public void readFile(String file, char delimiter) throws IOException {
-			treeview.add(ActogramReader.readActograms(
-				file, delimiter, startCol - 1, endCol - startCol + 1,
-				startRow - 1, endRow - startRow + 1, spp,
-				new TimeInterval(calValue, calUnit),
-				calUnit));
+		/**
+		 * Returns an Importer which reads files with the current
+		 * settings of this dialog.
+		 */
+		public Importer createImporter() {
+			final char delimiter = getDelimiter();
+			final int fromCol = startCol - 1;
+			final int numCols = endCol - startCol + 1;
+			final int fromLine = startRow - 1;
+			final int numLines = endRow - startRow + 1;
+			final int spp = this.spp;
+			final TimeInterval.Units unit = calUnit;
+			final TimeInterval cal = new TimeInterval(calValue, calUnit);
+			final FloatStorage.Type storage = this.storage;
+			final boolean cache = this.cache;
+			final Importer binaryImporter = createBinaryImporter(storage);
+			return new Importer() {
+				@Override
+				public ActogramGroup readFile(String file,
+						ActogramReader.ProgressListener l) throws IOException {
+					if(BinaryActogramFile.isBinaryFile(file))
+						return binaryImporter.readFile(file, l);
+					return ActogramReader.readActogramsCached(
+						file, delimiter, fromCol, numCols,
+						fromLine, numLines, spp, cal, unit, storage, cache, l);
+				}
+			};
 		}
 
 		@Override
@@ -321,20 +400,245 @@ public class OpenAction extends AbstractAction {
 						ex.getMessage());
 				}
 				saveDefaults();
-				for(File f : files) {
-					try {
-						readFile(f.getAbsolutePath(), getDelimiter());
-					} catch(Exception ex) {
-						IJ.error("Error reading " + f + "\n"
-								+ ex.getClass() + ": " + ex.getMessage());
-						ex.printStackTrace();
-					}
-				}
+				ImportDialog id = new ImportDialog(files, treeview, createImporter());
 				dispose();
+				id.setVisible(true);
+				id.start();
 			} else if(e.getActionCommand().equals("Cancel")) {
 				dispose();
 			}
 		}
 	}
+
+	/**
+	 * Reads one file into an ActogramGroup.
+	 */
+	private static interface Importer {
+		public ActogramGroup readFile(String file,
+			ActogramReader.ProgressListener l) throws IOException;
+	}
+
+	/**
+	 * Returns an Importer for files in the binary .actoj format, which
+	 * reads the data into the given kind of storage.
+	 */
+	private static Importer createBinaryImporter(final FloatStorage.Type storage) {
+		return new Importer() {
+			@Override
+			public ActogramGroup readFile(String file,
+					ActogramReader.ProgressListener l) throws IOException {
+				return BinaryActogramFile.read(file, storage);
+			}
+		};
+	}
+
+	/**
+	 * Dialog which reads a set of files concurrently on a bounded
+	 * thread pool and shows the progress of each file. The groups are
+	 * added to the TreeView in the order of the files, each as soon as
+	 * it and all files before it are read. A file which cannot be read
+	 * does not stop the others; all errors are reported at the end.
+	 */
+	private static final class ImportDialog extends JDialog
+					implements ActionListener {
+
+		private static final int QUEUED = -1;
+
+		private final File[] files;
+		private final TreeView treeview;
+		private final Importer importer;
+
+		private final ExecutorService pool;
+		private final ArrayList<Future<ActogramGroup>> futures =
+			new ArrayList<Future<ActogramGroup>>();
+
+		/** Progress in percent for each file, written by the workers. */
+		private final AtomicIntegerArray percent;
+
+		/** Final status for each file, only accessed on the EDT. */
+		private final String[] status;
+
+		private final StringBuffer errors = new StringBuffer();
+
+		private final AbstractTableModel model;
+		private final JProgressBar progressBar;
+		private final JButton cancelButton;
+		private final Timer timer;
+
+		public ImportDialog(File[] files, TreeView treeview, Importer importer) {
+			super();
+			setTitle("Opening " + files.length + " file(s)");
+			this.files = files;
+			this.treeview = treeview;
+			this.importer = importer;
+			this.percent = new AtomicIntegerArray(files.length);
+			this.status = new String[files.length];
+			for(int i = 0; i < files.length; i++)
+				percent.set(i, QUEUED);
+
+			int nThreads = Math.min(files.length,
+				Runtime.getRuntime().availableProcessors());
+			this.pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+
+			model = new AbstractTableModel() {
+				@Override
+				public int getRowCount() {
+					return ImportDialog.this.files.length;
+				}
+
+				@Override
+				public int getColumnCount() {
+					return 2;
+				}
+
+				@Override
+				public String getColumnName(int col) {
+					return col == 0 ? "File" : "Status";
+				}
+
+				@Override
+				public Object getValueAt(int row, int col) {
+					if(col == 0)
+						return ImportDialog.this.files[row].getName();
+					if(status[row] != null)
+						return status[row];
+					int p = percent.get(row);
+					return p == QUEUED ? "queued" : p + "%";
+				}
+			};
+			JScrollPane scroll = new JScrollPane(new JTable(model));
+			scroll.setPreferredSize(new Dimension(400, 200));
+			getContentPane().add(scroll, BorderLayout.CENTER);
+
+			JPanel p = new JPanel(new FlowLayout());
+			progressBar = new JProgressBar(0, 100 * files.length);
+			p.add(progressBar);
+			cancelButton = new JButton("Cancel");
+			cancelButton.addActionListener(this);
+			p.add(cancelButton);
+			getContentPane().add(p, BorderLayout.SOUTH);
+
+			setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+			addWindowListener(new WindowAdapter() {
+				@Override
+				public void windowClosing(WindowEvent e) {
+					cancel();
+				}
+			});
+
+			timer = new Timer(200, new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					updateProgress();
+				}
+			});
+			pack();
+		}
+
+		/**
+		 * Submits all files to the thread pool and starts a thread which
+		 * collects the results in the order of the files.
+		 */
+		public void start() {
+			for(int i = 0; i < files.length; i++) {
+				final int idx = i;
+				final String path = files[i].getAbsolutePath();
+				futures.add(pool.submit(new Callable<ActogramGroup>() {
+					@Override
+					public ActogramGroup call() throws Exception {
+						percent.set(idx, 0);
+						return importer.readFile(path,
+							new ActogramReader.ProgressListener() {
+								@Override
+								public void progressChanged(long read, long total) {
+									if(total > 0)
+										percent.set(idx, (int)(100 * read / total));
+								}
+							});
+					}
+				}));
+			}
+			pool.shutdown();
+			timer.start();
+
+			new Thread() {
+				@Override
+				public void run() {
+					for(int i = 0; i < files.length; i++)
+						collect(i);
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							finish();
+						}
+					});
+				}
+			}.start();
+		}
+
+		/**
+		 * Waits for the idx'th file and hands the result over to the EDT.
+		 */
+		private void collect(final int idx) {
+			String st;
+			ActogramGroup group = null;
+			try {
+				group = futures.get(idx).get();
+				st = "done";
+			} catch(CancellationException e) {
+				st = "cancelled";
+			} catch(InterruptedException e) {
+				st = "cancelled";
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof InterruptedIOException) {
+					st = "cancelled";
+				} else {
+					st = "failed";
+					errors.append(files[idx].getName()).append(": ")
+						.append(cause.getClass().getName()).append(": ")
+						.append(cause.getMessage()).append("\n");
+					cause.printStackTrace();
+				}
+			}
+			final String fst = st;
+			final ActogramGroup fgroup = group;
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					status[idx] = fst;
+					if(fgroup != null)
+						treeview.add(fgroup);
+					updateProgress();
+				}
+			});
+		}
+
+		private void updateProgress() {
+			int sum = 0;
+			for(int i = 0; i < files.length; i++)
+				sum += status[i] != null ? 100 : Math.max(0, percent.get(i));
+			progressBar.setValue(sum);
+			model.fireTableRowsUpdated(0, files.length - 1);
+		}
+
+		private void cancel() {
+			cancelButton.setEnabled(false);
+			for(Future<ActogramGroup> f : futures)
+				f.cancel(true);
+		}
+
+		private void finish() {
+			timer.stop();
+			dispose();
+			if(errors.length() > 0)
+				IJ.error("Error reading file(s):\n" + errors);
+		}
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			cancel();
+		}
+	}
 }
 
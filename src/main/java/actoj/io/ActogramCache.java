@@ -0,0 +1,80 @@
+package actoj.io;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+
+import actoj.core.ActogramGroup;
+import actoj.core.FloatStorage;
+import actoj.core.TimeInterval;
+
+/**
+ * Sidecar cache for imported text files.
+ *
+ * If enabled in the import dialog (off by default), the ActogramGroup
+ * of a parsed text file is stored in the binary format next to it, as
+ * &lt;file&gt;.actoj. The cache file
+ * carries a key built from the source path, its modification time and
+ * size, and the import settings; it is only used if the key matches, so
+ * a changed source file or different settings lead to parsing the text
+ * again.
+ */
+public class ActogramCache {
+
+	/**
+	 * Returns the path of the cache file for the given source file.
+	 */
+	public static String getCacheFile(String source) {
+		return source + BinaryActogramFile.EXTENSION;
+	}
+
+	/**
+	 * Returns the key for the given source file and import settings.
+	 */
+	public static String makeKey(String source, char delimiter,
+			int fromCol, int numCols, int fromLine, int numLines,
+			int spp, TimeInterval cal, TimeInterval.Units unit) {
+		File f = new File(source);
+		return f.getAbsolutePath()
+			+ "|" + f.lastModified()
+			+ "|" + f.length()
+			+ "|" + (int)delimiter
+			+ "|" + fromCol + "|" + numCols
+			+ "|" + fromLine + "|" + numLines
+			+ "|" + spp + "|" + cal.millis + "|" + unit;
+	}
+
+	/**
+	 * Returns the cached ActogramGroup for the given source file, or null
+	 * if there is no cache file or if it doesn't match the given key.
+	 * With FloatStorage.Type.Mapped, the data is mapped from the cache
+	 * file.
+	 */
+	public static ActogramGroup read(String source, String key, FloatStorage.Type storage) {
+		String cache = getCacheFile(source);
+		if(!new File(cache).exists())
+			return null;
+		try {
+			if(!key.equals(BinaryActogramFile.readKey(cache)))
+				return null;
+			return BinaryActogramFile.read(cache, storage);
+		} catch(Exception e) {
+			// an unreadable cache file is treated as a missing one
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the cache file for the given source file. Failures, e.g.
+	 * because the directory is read-only, are only logged, since they
+	 * mean that the file needs to be parsed again next time.
+	 */
+	public static void write(String source, String key, ActogramGroup group) {
+		try {
+			BinaryActogramFile.write(group, getCacheFile(source), key);
+		} catch(IOException e) {
+			IJ.log("Cannot write the cache file for " + source + ": " + e.getMessage());
+		}
+	}
+}
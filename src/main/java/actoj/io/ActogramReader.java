@@ -2,12 +2,14 @@ package actoj.io;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 
 import actoj.core.Actogram;
 import actoj.core.ActogramGroup;
+import actoj.core.FloatStorage;
 import actoj.core.TimeInterval;
 import actoj.util.FloatArray;
 
@@ -16,6 +18,16 @@ import actoj.util.FloatArray;
  */
 public class ActogramReader {
 
+	/** The number of bytes sampled by estimateLines(). */
+	private static final int SAMPLE_SIZE = 1 << 16;
+
+	/**
+	 * Listener which is notified about the progress of reading a file.
+	 */
+	public static interface ProgressListener {
+		public void progressChanged(long bytesRead, long bytesTotal);
+	}
+
 	/**
 	 * Reads and returns the ActogramGroup from the specified file.
 	 * Actograms are expected in columns.
@@ -66,5 +78,194 @@ public class ActogramReader {
 
 		return new ActogramGroup(new File(file).getName(), ret);
 	}
-}
 
+	/**
+	 * Reads and returns the ActogramGroup from the specified file,
+	 * like readActograms(), but scans the file in a single pass over
+	 * a character buffer: Columns outside fromCol..fromCol + numCols
+	 * are skipped, and values are parsed without creating Strings.
+	 * @param file      The file to read.
+	 * @param delimiter The column delimiter.
+	 * @param fromCol   The first data column.
+	 * @param numCols   The number of actograms/data columns.
+	 * @param fromLine  The first line to read.
+	 * @param numLines  The number of lines to read.
+	 * @param spp       Samples per period in the file.
+	 * @param cal       The interval between measurements.
+	 * @param unit      The unit of the interval.
+	 */
+	public static ActogramGroup readActogramsStreaming(String file, char delimiter,
+		int fromCol, int numCols, int fromLine, int numLines,
+		int spp, TimeInterval cal, TimeInterval.Units unit) throws FileNotFoundException, IOException {
+
+		FloatArray[] arr = createArrays(numCols,
+			estimateLines(file, fromLine, numLines));
+
+		FileReader in = new FileReader(file);
+		try {
+			ColumnScanner scanner = new ColumnScanner(in);
+			scanner.skipLines(fromLine);
+			scanner.readColumns(delimiter, fromCol, numCols, numLines, arr);
+		} finally {
+			in.close();
+		}
+
+		Actogram[] ret = new Actogram[numCols];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = new Actogram("#" + i, arr[i].release(), spp, cal, unit);
+
+		return new ActogramGroup(new File(file).getName(), ret);
+	}
+
+	/**
+	 * Reads and returns the ActogramGroup from the specified file,
+	 * like readActogramsStreaming(), but accesses the file through
+	 * memory mapping: Header lines are skipped on the raw bytes, and
+	 * only the requested lines are scanned, so that large files can be
+	 * read without buffering them on the heap.
+	 * @param file      The file to read.
+	 * @param delimiter The column delimiter.
+	 * @param fromCol   The first data column.
+	 * @param numCols   The number of actograms/data columns.
+	 * @param fromLine  The first line to read.
+	 * @param numLines  The number of lines to read.
+	 * @param spp       Samples per period in the file.
+	 * @param cal       The interval between measurements.
+	 * @param unit      The unit of the interval.
+	 */
+	public static ActogramGroup readActogramsMapped(String file, char delimiter,
+		int fromCol, int numCols, int fromLine, int numLines,
+		int spp, TimeInterval cal, TimeInterval.Units unit) throws FileNotFoundException, IOException {
+		return readActogramsMapped(file, delimiter, fromCol, numCols,
+			fromLine, numLines, spp, cal, unit, null);
+	}
+
+	/**
+	 * Like readActogramsMapped(), but notifies the given listener
+	 * about the progress. Reading can be cancelled by interrupting the
+	 * reading thread, in which case an InterruptedIOException is thrown.
+	 * @param listener  The progress listener, may be null.
+	 */
+	public static ActogramGroup readActogramsMapped(String file, char delimiter,
+		int fromCol, int numCols, int fromLine, int numLines,
+		int spp, TimeInterval cal, TimeInterval.Units unit,
+		ProgressListener listener) throws FileNotFoundException, IOException {
+
+		FloatArray[] arr;
+		MappedTextFile in = new MappedTextFile(file);
+		try {
+			in.skipLines(fromLine);
+			// counting the lines on the raw bytes is cheap compared to
+			// parsing them, and gives the exact array lengths
+			arr = createArrays(numCols, Math.min(numLines, in.countLines()));
+			ColumnScanner scanner = new ColumnScanner(in.reader(listener));
+			scanner.readColumns(delimiter, fromCol, numCols, numLines, arr);
+		} finally {
+			in.close();
+		}
+
+		Actogram[] ret = new Actogram[numCols];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = new Actogram("#" + i, arr[i].release(), spp, cal, unit);
+
+		return new ActogramGroup(new File(file).getName(), ret);
+	}
+
+	/**
+	 * Creates numCols FloatArrays with the given capacity.
+	 */
+	private static FloatArray[] createArrays(int numCols, int capacity) {
+		FloatArray[] arr = new FloatArray[numCols];
+		for(int i = 0; i < arr.length; i++)
+			arr[i] = new FloatArray(capacity);
+		return arr;
+	}
+
+	/**
+	 * Estimates the number of lines which will be read from the
+	 * specified file, from the file size and the average length of
+	 * the lines in the first SAMPLE_SIZE bytes after the header.
+	 */
+	static int estimateLines(String file, int fromLine, int numLines) throws IOException {
+		byte[] sample = new byte[SAMPLE_SIZE];
+		int n = 0;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int r;
+			while(n < sample.length && (r = in.read(sample, n, sample.length - n)) > 0)
+				n += r;
+		} finally {
+			in.close();
+		}
+
+		// count the lines in the sample, remembering where the header
+		// ends and where the last complete line ends
+		int headerEnd = 0, lastEnd = 0, lines = 0;
+		for(int i = 0; i < n; i++) {
+			byte b = sample[i];
+			if(b == '\n' || (b == '\r' && (i + 1 == n || sample[i + 1] != '\n'))) {
+				lines++;
+				lastEnd = i + 1;
+				if(lines == fromLine)
+					headerEnd = lastEnd;
+			}
+		}
+		int dataLines = lines - fromLine;
+
+		long size = new File(file).length();
+		if(n == size) {
+			// the whole file was sampled
+			if(lastEnd < n)
+				dataLines++;
+			return Math.max(0, Math.min(numLines, dataLines));
+		}
+		if(dataLines <= 0)
+			return Math.min(numLines, FloatArray.INITIAL_LENGTH);
+		double bytesPerLine = (double)(lastEnd - headerEnd) / dataLines;
+		long estimate = Math.round((size - headerEnd) / bytesPerLine);
+		return (int)Math.min(numLines, estimate);
+	}
+
+	/**
+	 * Like readActogramsMapped(), but uses the sidecar cache: If the
+	 * file was imported before with the same settings and has not
+	 * changed since, the ActogramGroup is read from the cache instead of
+	 * parsing the text again. Otherwise, the text is parsed and the
+	 * cache file is written.
+	 * @param storage   The kind of storage of the returned actograms.
+	 * @param useCache  If false, the cache is neither read nor written,
+	 *                  e.g. because the user doesn't want files next to
+	 *                  the data.
+	 * @param listener  The progress listener, may be null.
+	 */
+	public static ActogramGroup readActogramsCached(String file, char delimiter,
+		int fromCol, int numCols, int fromLine, int numLines,
+		int spp, TimeInterval cal, TimeInterval.Units unit,
+		FloatStorage.Type storage, boolean useCache,
+		ProgressListener listener) throws FileNotFoundException, IOException {
+
+		if(!useCache) {
+			ActogramGroup group = readActogramsMapped(file, delimiter,
+				fromCol, numCols, fromLine, numLines, spp, cal, unit, listener);
+			setStorageType(group, storage);
+			return group;
+		}
+
+		String key = ActogramCache.makeKey(file, delimiter, fromCol, numCols,
+			fromLine, numLines, spp, cal, unit);
+		ActogramGroup group = ActogramCache.read(file, key, storage);
+		if(group != null)
+			return group;
+
+		group = readActogramsMapped(file, delimiter, fromCol, numCols,
+			fromLine, numLines, spp, cal, unit, listener);
+		ActogramCache.write(file, key, group);
+		setStorageType(group, storage);
+		return group;
+	}
+
+	private static void setStorageType(ActogramGroup group, FloatStorage.Type storage) {
+		for(int i = 0; i < group.size(); i++)
+			group.get(i).setStorageType(storage);
+	}
+}
@@ -0,0 +1,405 @@
+package actoj.io;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import actoj.core.Actogram;
+import actoj.core.ActogramGroup;
+import actoj.core.ExternalVariable;
+import actoj.core.FloatStorage;
+import actoj.core.MappedFloatStorage;
+import actoj.core.MarkerList;
+import actoj.core.TimeInterval;
+
+/**
+ * Reads and writes ActogramGroups in a compact binary format (.actoj).
+ *
+ * Layout (big endian):
+ * <pre>
+ * magic 'ACTJ', version
+ * key                  (identifies the source of a cache file, or empty)
+ * group name
+ * external variables   (the group's table; actograms refer to its indices)
+ * per actogram:
+ *     name, SAMPLES_PER_PERIOD, interval (ms), unit,
+ *     number of samples, file offset of the samples,
+ *     indices of its external variables, markers
+ * samples of each actogram, as contiguous floats
+ * </pre>
+ * The samples start at 8-byte aligned offsets, so that they can be
+ * mapped and read in bulk. The header is read as a stream, and the
+ * samples of each actogram separately at their offset, so that files
+ * may be larger than 2 GB.
+ */
+public class BinaryActogramFile {
+
+	/** The file extension. */
+	public static final String EXTENSION = ".actoj";
+
+	private static final int MAGIC = ('A' << 24) | ('C' << 16) | ('T' << 8) | 'J';
+
+	private static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The maximum length of a string, in bytes, to detect corrupt files. */
+	private static final int MAX_STRING = 1 << 20;
+
+	/**
+	 * Returns true if the given file name has the .actoj extension.
+	 */
+	public static boolean isBinaryFile(String file) {
+		return file.toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Writes the given group to the specified file.
+	 */
+	public static void write(ActogramGroup group, String file) throws IOException {
+		write(group, file, "");
+	}
+
+	/**
+	 * Writes the given group to the specified file.
+	 *
+	 * The data is written to a temporary file next to the specified
+	 * file first, which then atomically replaces it where the file
+	 * system supports that, so that readers never see a partially
+	 * written file, and so that actograms which are currently mapped
+	 * from the file stay valid.
+	 * @param key A string identifying the source of the data, which is
+	 *            checked by readKey() before a cached file is used.
+	 */
+	public static void write(ActogramGroup group, String file, String key) throws IOException {
+		Path dst = new File(file).getAbsoluteFile().toPath();
+		// unique, since several imports may write at the same time
+		Path tmp = Files.createTempFile(dst.getParent(),
+			dst.getFileName() + ".", ".tmp");
+		try {
+			writeFile(group, tmp.toString(), key);
+			try {
+				Files.move(tmp, dst, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp, dst, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static void writeFile(ActogramGroup group, String file, String key) throws IOException {
+		// collect the external variables, which are usually shared
+		// between all actograms of a group
+		ArrayList<ExternalVariable> externals = new ArrayList<ExternalVariable>();
+		IdentityHashMap<ExternalVariable, Integer> extIndex =
+			new IdentityHashMap<ExternalVariable, Integer>();
+		for(int a = 0; a < group.size(); a++) {
+			for(ExternalVariable ev : group.get(a).getExternalVariables()) {
+				if(!extIndex.containsKey(ev)) {
+					extIndex.put(ev, externals.size());
+					externals.add(ev);
+				}
+			}
+		}
+
+		// the header length does not depend on the offsets, so write
+		// it once to get its length, and once more with the offsets
+		long[] offsets = new long[group.size()];
+		byte[] header = writeHeader(group, key, externals, extIndex, offsets);
+		long offs = align(header.length);
+		for(int a = 0; a < group.size(); a++) {
+			offsets[a] = offs;
+			offs = align(offs + 4L * group.get(a).size());
+		}
+		header = writeHeader(group, key, externals, extIndex, offsets);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			channel.write(ByteBuffer.wrap(header), 0);
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+			for(int a = 0; a < group.size(); a++) {
+				Actogram actogram = group.get(a);
+				long pos = offsets[a];
+				int n = actogram.size();
+				int i = 0;
+				while(i < n) {
+					buf.clear();
+					while(i < n && buf.remaining() >= 4)
+						buf.putFloat(actogram.get(i++));
+					buf.flip();
+					while(buf.hasRemaining())
+						pos += channel.write(buf, pos);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] writeHeader(ActogramGroup group, String key,
+			ArrayList<ExternalVariable> externals,
+			IdentityHashMap<ExternalVariable, Integer> extIndex,
+			long[] offsets) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, key);
+		writeString(out, group.name);
+
+		out.writeInt(externals.size());
+		for(ExternalVariable ev : externals) {
+			writeString(out, ev.name);
+			out.writeInt(ev.onColor);
+			out.writeInt(ev.offColor);
+			out.writeInt(ev.values.length);
+			for(boolean b : ev.values)
+				out.writeBoolean(b);
+		}
+
+		out.writeInt(group.size());
+		for(int a = 0; a < group.size(); a++) {
+			Actogram actogram = group.get(a);
+			writeString(out, actogram.name);
+			out.writeInt(actogram.SAMPLES_PER_PERIOD);
+			out.writeDouble(actogram.interval.millis);
+			out.writeInt(actogram.unit.ordinal());
+			out.writeInt(actogram.size());
+			out.writeLong(offsets[a]);
+
+			ExternalVariable[] evs = actogram.getExternalVariables();
+			out.writeInt(evs.length);
+			for(ExternalVariable ev : evs)
+				out.writeInt(extIndex.get(ev));
+
+			out.writeInt(actogram.nMarkers());
+			for(int m = 0; m < actogram.nMarkers(); m++)
+				writeMarker(out, actogram.getMarker(m));
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void writeMarker(DataOutputStream out, MarkerList ml) throws IOException {
+		writeString(out, ml.getName());
+		out.writeInt(ml.getColor().getRGB());
+		out.writeDouble(ml.getCalibration());
+		out.writeFloat(ml.getLinewidth());
+		out.writeInt(ml.getIndexInPlotPerLine());
+		out.writeInt(ml.size());
+		for(int pos : ml)
+			out.writeInt(pos);
+		MarkerList.RegressionLine r = ml.getRegression();
+		out.writeBoolean(r != null);
+		if(r != null) {
+			out.writeDouble(r.m);
+			out.writeDouble(r.t);
+			out.writeInt(r.firstPeriod);
+			out.writeInt(r.lastPeriod);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(UTF8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static long align(long offs) {
+		return (offs + 7) & ~7L;
+	}
+
+	/**
+	 * Reads the key of the specified file, or returns null if it is
+	 * not a valid .actoj file.
+	 */
+	public static String readKey(String file) throws IOException {
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			return readString(in);
+		} catch(EOFException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the ActogramGroup from the specified file, into heap storage.
+	 */
+	public static ActogramGroup read(String file) throws IOException {
+		return read(file, FloatStorage.Type.Heap);
+	}
+
+	/**
+	 * Reads the ActogramGroup from the specified file, into the given
+	 * kind of storage. With FloatStorage.Type.Mapped, the samples are
+	 * mapped directly from the file, without reading them.
+	 */
+	public static ActogramGroup read(String file, FloatStorage.Type type) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			// positional reads of the samples don't move the stream
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel)));
+			if(in.readInt() != MAGIC)
+				throw new IOException(file + " is not an ActogramJ file");
+			int version = in.readInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported file version: " + version);
+			readString(in); // key
+			String groupName = readString(in);
+
+			ExternalVariable[] externals = new ExternalVariable[readCount(in, size)];
+			for(int e = 0; e < externals.length; e++) {
+				String name = readString(in);
+				int onColor = in.readInt();
+				int offColor = in.readInt();
+				ExternalVariable ev = new ExternalVariable(name, readCount(in, size));
+				ev.onColor = onColor;
+				ev.offColor = offColor;
+				for(int i = 0; i < ev.values.length; i++)
+					ev.values[i] = in.readBoolean();
+				externals[e] = ev;
+			}
+
+			Actogram[] actograms = new Actogram[readCount(in, size)];
+			for(int a = 0; a < actograms.length; a++) {
+				String name = readString(in);
+				int spp = in.readInt();
+				TimeInterval interval = new TimeInterval(in.readDouble());
+				TimeInterval.Units unit = TimeInterval.Units.values()[
+					readIndex(in, TimeInterval.Units.values().length)];
+				int length = readCount(in, size / 4);
+				long offset = in.readLong();
+				if(offset < 0 || offset + 4L * length > size)
+					throw new IOException("Invalid data offset: " + offset);
+
+				FloatStorage data;
+				if(type == FloatStorage.Type.Mapped) {
+					data = new MappedFloatStorage(file, offset, length, ByteOrder.BIG_ENDIAN);
+				} else {
+					data = type.create(length);
+					readSamples(channel, offset, data);
+				}
+
+				Actogram actogram = new Actogram(name, data, spp, interval, unit);
+				int nExt = readCount(in, size);
+				for(int e = 0; e < nExt; e++)
+					actogram.addExternalVariable(externals[readIndex(in, externals.length)]);
+				int nMarkers = readCount(in, size);
+				for(int m = 0; m < nMarkers; m++)
+					actogram.addMarker(readMarker(in, size));
+				actograms[a] = actogram;
+			}
+			return new ActogramGroup(groupName, actograms);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads data.size() big endian floats, starting at offset, into
+	 * data.
+	 */
+	private static void readSamples(FileChannel channel, long offset,
+			FloatStorage data) throws IOException {
+		int length = data.size();
+		ByteBuffer bytes = ByteBuffer.allocate(4 << 14);
+		float[] tmp = new float[Math.min(length, 1 << 14)];
+		long pos = offset;
+		for(int i = 0; i < length; i += tmp.length) {
+			int len = Math.min(tmp.length, length - i);
+			bytes.clear();
+			bytes.limit(4 * len);
+			while(bytes.hasRemaining()) {
+				int r = channel.read(bytes, pos);
+				if(r < 0)
+					throw new EOFException("Unexpected end of file");
+				pos += r;
+			}
+			bytes.flip();
+			FloatBuffer fb = bytes.asFloatBuffer();
+			fb.get(tmp, 0, len);
+			data.set(i, tmp, 0, len);
+		}
+	}
+
+	private static MarkerList readMarker(DataInputStream in, long size) throws IOException {
+		String name = readString(in);
+		Color color = new Color(in.readInt(), true);
+		double calibration = in.readDouble();
+		float linewidth = in.readFloat();
+		int indexInPlotPerLine = in.readInt();
+		int n = readCount(in, size / 4);
+		ArrayList<Integer> positions = new ArrayList<Integer>(n);
+		for(int i = 0; i < n; i++)
+			positions.add(in.readInt());
+		MarkerList ml = new MarkerList(name, positions, calibration, color);
+		ml.setLinewidth(linewidth);
+		ml.setIndexInPlotPerLine(indexInPlotPerLine);
+		if(in.readBoolean()) {
+			double m = in.readDouble();
+			double t = in.readDouble();
+			int firstPeriod = in.readInt();
+			int lastPeriod = in.readInt();
+			ml.setRegression(new MarkerList.RegressionLine(m, t, firstPeriod, lastPeriod));
+		}
+		return ml;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[readCount(in, MAX_STRING)];
+		in.readFully(b);
+		return new String(b, UTF8);
+	}
+
+	/**
+	 * Reads a number of elements, checking it against the given bound,
+	 * so that corrupt files don't lead to huge allocations.
+	 */
+	private static int readCount(DataInputStream in, long max) throws IOException {
+		int n = in.readInt();
+		if(n < 0 || n > max)
+			throw new IOException("Invalid count: " + n);
+		return n;
+	}
+
+	/**
+	 * Reads an index into an array of the given length.
+	 */
+	private static int readIndex(DataInputStream in, int length) throws IOException {
+		int i = in.readInt();
+		if(i < 0 || i >= length)
+			throw new IOException("Invalid index: " + i);
+		return i;
+	}
+}
@@ -0,0 +1,339 @@
+package actoj.io;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.Random;
+
+import actoj.core.ActogramGroup;
+import actoj.core.TimeInterval;
+import actoj.util.FloatArray;
+
+/**
+ * Scans delimited text in a single pass over a character buffer.
+ *
+ * Lines are located in the buffer directly, cells outside the requested
+ * column window are skipped without being looked at, and numbers are
+ * parsed from the character range without creating intermediate Strings.
+ */
+final class ColumnScanner {
+
+	/** The initial buffer size, grown if a single line does not fit. */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** Exactly representable powers of ten as floats. */
+	private static final float[] FLOAT_POW10 = {
+		1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f,
+		1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+	/** The largest mantissa which is exactly representable as float. */
+	private static final long MAX_EXACT_MANTISSA = 1L << 24;
+
+	private final Reader in;
+
+	private char[] buf = new char[BUFFER_SIZE];
+
+	/** Start of the unprocessed data in buf. */
+	private int pos = 0;
+
+	/** End of the valid data in buf. */
+	private int lim = 0;
+
+	private boolean eof = false;
+
+	/** Whether the previous line ended with a '\r'. */
+	private boolean skipLF = false;
+
+	/** Start and end of the current line, set by nextLine(). */
+	private int lineStart, lineEnd;
+
+	/**
+	 * Constructor.
+	 */
+	ColumnScanner(Reader in) {
+		this.in = in;
+	}
+
+	/**
+	 * Skips the specified number of lines.
+	 */
+	void skipLines(int n) throws IOException {
+		for(int i = 0; i < n && nextLine(); i++)
+			;
+	}
+
+	/**
+	 * Reads up to numLines lines and appends the values of columns
+	 * fromCol to fromCol + numCols - 1 to the given arrays. Like
+	 * the String based reader, columns which are missing in a line
+	 * are silently skipped.
+	 * @return the number of lines read.
+	 */
+	int readColumns(char delimiter, int fromCol, int numCols,
+			int numLines, FloatArray[] arr) throws IOException {
+		int toCol = fromCol + numCols;
+		int l = 0;
+		while(l < numLines && nextLine()) {
+			int p = lineStart;
+			int end = lineEnd;
+			int col = 0;
+			// skip the leading columns
+			while(col < fromCol && p < end) {
+				if(buf[p] == delimiter)
+					col++;
+				p++;
+			}
+			if(col < fromCol) {
+				l++;
+				continue;
+			}
+			while(col < toCol && p <= end) {
+				int cellEnd = p;
+				while(cellEnd < end && buf[cellEnd] != delimiter)
+					cellEnd++;
+				if(cellEnd == p && onlyDelimiters(cellEnd, end, delimiter))
+					break;
+				try {
+					arr[col - fromCol].add(parseFloat(buf, p, cellEnd));
+				} catch(NumberFormatException e) {
+					throw new IllegalArgumentException(
+						"Line " + (l + 1) + ": Cannot convert "
+						+ new String(buf, p, cellEnd - p) + " to a number");
+				}
+				col++;
+				p = cellEnd + 1;
+			}
+			l++;
+		}
+		return l;
+	}
+
+	/**
+	 * Returns true if buf[from, to[ contains only delimiters, i.e. if all
+	 * remaining cells are empty. String.split() drops trailing empty
+	 * cells, so these count as missing rather than as invalid.
+	 */
+	private boolean onlyDelimiters(int from, int to, char delimiter) {
+		for(int i = from; i < to; i++)
+			if(buf[i] != delimiter)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Advances to the next line, which is then available in
+	 * buf[lineStart, lineEnd[. Line terminators are '\n', '\r'
+	 * and "\r\n", as in BufferedReader.readLine().
+	 * @return false if there are no more lines.
+	 */
+	private boolean nextLine() throws IOException {
+		int searchFrom = pos;
+		while(true) {
+			if(skipLF) {
+				if(pos == lim && !fill())
+					return false;
+				if(buf[pos] == '\n')
+					pos++;
+				skipLF = false;
+				searchFrom = pos;
+			}
+			int i = searchFrom;
+			while(i < lim && buf[i] != '\n' && buf[i] != '\r')
+				i++;
+			if(i < lim) {
+				lineStart = pos;
+				lineEnd = i;
+				if(buf[i] == '\r') {
+					if(i + 1 < lim) {
+						pos = buf[i + 1] == '\n' ? i + 2 : i + 1;
+					} else {
+						pos = i + 1;
+						skipLF = true;
+					}
+				} else {
+					pos = i + 1;
+				}
+				return true;
+			}
+			if(eof) {
+				if(pos == lim)
+					return false;
+				// last line without terminator
+				lineStart = pos;
+				lineEnd = lim;
+				pos = lim;
+				return true;
+			}
+			int scanned = lim - pos;
+			fill();
+			searchFrom = pos + scanned;
+		}
+	}
+
+	/**
+	 * Moves the unprocessed data to the start of the buffer and reads
+	 * more characters, growing the buffer if it is full.
+	 * @return false if the end of the input was reached and no new
+	 *         data is available.
+	 */
+	private boolean fill() throws IOException {
+		int rem = lim - pos;
+		if(pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, rem);
+			pos = 0;
+			lim = rem;
+		}
+		if(lim == buf.length) {
+			char[] tmp = new char[2 * buf.length];
+			System.arraycopy(buf, 0, tmp, 0, lim);
+			buf = tmp;
+		}
+		int n = in.read(buf, lim, buf.length - lim);
+		if(n <= 0) {
+			eof = true;
+			return false;
+		}
+		lim += n;
+		return true;
+	}
+
+	/**
+	 * Parses a float from the given character range, with the same
+	 * result as Float.parseFloat(new String(b, from, to - from)).
+	 *
+	 * Plain decimal numbers with up to 7 significant digits are
+	 * converted directly; everything else falls back to
+	 * Float.parseFloat().
+	 */
+	static float parseFloat(char[] b, int from, int to) {
+		int s = from, e = to;
+		while(s < e && b[s] <= ' ')
+			s++;
+		while(e > s && b[e - 1] <= ' ')
+			e--;
+		if(s == e)
+			throw new NumberFormatException("empty String");
+
+		int i = s;
+		boolean neg = false;
+		if(b[i] == '-' || b[i] == '+') {
+			neg = b[i] == '-';
+			i++;
+		}
+
+		long mant = 0;
+		int exp10 = 0;
+		boolean exact = true;
+		boolean hasDigits = false;
+
+		for(; i < e; i++) {
+			int d = b[i] - '0';
+			if(d < 0 || d > 9)
+				break;
+			hasDigits = true;
+			if(mant < MAX_EXACT_MANTISSA)
+				mant = 10 * mant + d;
+			else {
+				exp10++;
+				exact &= d == 0;
+			}
+		}
+		if(i < e && b[i] == '.') {
+			for(i++; i < e; i++) {
+				int d = b[i] - '0';
+				if(d < 0 || d > 9)
+					break;
+				hasDigits = true;
+				if(mant < MAX_EXACT_MANTISSA) {
+					mant = 10 * mant + d;
+					exp10--;
+				} else {
+					exact &= d == 0;
+				}
+			}
+		}
+		if(i < e && (b[i] == 'e' || b[i] == 'E') && hasDigits) {
+			i++;
+			boolean eneg = false;
+			if(i < e && (b[i] == '-' || b[i] == '+')) {
+				eneg = b[i] == '-';
+				i++;
+			}
+			int ex = 0;
+			boolean hasExpDigits = false;
+			for(; i < e && ex < 1000; i++) {
+				int d = b[i] - '0';
+				if(d < 0 || d > 9)
+					break;
+				ex = 10 * ex + d;
+				hasExpDigits = true;
+			}
+			if(!hasExpDigits)
+				exact = false;
+			exp10 += eneg ? -ex : ex;
+		}
+
+		if(!hasDigits || i != e || !exact || mant > MAX_EXACT_MANTISSA
+				|| exp10 < -10 || exp10 > 10)
+			return Float.parseFloat(new String(b, s, e - s));
+
+		float v = exp10 >= 0
+			? mant * FLOAT_POW10[exp10]
+			: mant / FLOAT_POW10[-exp10];
+		return neg ? -v : v;
+	}
+
+	/**
+	 * Benchmarks the String based and the scanning reader on a
+	 * generated file with 10 leading info columns and 32 data columns,
+	 * similar to a DAM monitor file, and prints the throughput in MB/s.
+	 */
+	public static void main(String[] args) throws IOException {
+		int nLines = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int nCols = 32;
+		File f = File.createTempFile("actoj-bench", ".txt");
+		f.deleteOnExit();
+
+		Random rand = new Random(42);
+		PrintWriter out = new PrintWriter(new FileWriter(f));
+		for(int l = 0; l < nLines; l++) {
+			out.print(l + "\t1 Jan 10\t00:00:00\t1\t0\t0\t0\t0\t0\t0");
+			for(int c = 0; c < nCols; c++)
+				out.print("\t" + (rand.nextInt(4) == 0 ? rand.nextInt(100) : 0));
+			out.println();
+		}
+		out.close();
+
+		String path = f.getAbsolutePath();
+		double mb = f.length() / (1024.0 * 1024.0);
+		TimeInterval cal = new TimeInterval(1, TimeInterval.Units.MINUTES);
+		TimeInterval.Units unit = TimeInterval.Units.MINUTES;
+
+		for(int r = 0; r < 5; r++) {
+			long start = System.nanoTime();
+			ActogramGroup g1 = ActogramReader.readActograms(path, '\t',
+				10, nCols, 0, nLines, 1440, cal, unit);
+			long t1 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			ActogramGroup g2 = ActogramReader.readActogramsStreaming(path, '\t',
+				10, nCols, 0, nLines, 1440, cal, unit);
+			long t2 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			ActogramGroup g3 = ActogramReader.readActogramsMapped(path, '\t',
+				10, nCols, 0, nLines, 1440, cal, unit);
+			long t3 = System.nanoTime() - start;
+
+			for(int i = 0; i < g1.size(); i++)
+				if(!java.util.Arrays.equals(g1.get(i).getData(), g2.get(i).getData())
+						|| !java.util.Arrays.equals(g1.get(i).getData(), g3.get(i).getData()))
+					throw new RuntimeException("Column " + i + " differs");
+
+			System.out.printf("%.1f MB: split %.1f MB/s, streaming %.1f MB/s, mapped %.1f MB/s%n",
+				mb, mb / (t1 * 1e-9), mb / (t2 * 1e-9), mb / (t3 * 1e-9));
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package actoj.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Read-only access to a text file through memory mapping.
+ *
+ * The file is mapped in windows of WINDOW_SIZE bytes, so that even very
+ * large files can be read without copying them onto the heap. Line
+ * boundaries are found on the raw bytes; the data is handed to the
+ * ColumnScanner as ISO-8859-1, which is sufficient for the numeric
+ * columns, since digits, signs, decimal points and the supported
+ * delimiters are all ASCII.
+ */
+public class MappedTextFile {
+
+	/** The size of one mapped window. */
+	private static final long WINDOW_SIZE = 256L << 20;
+
+	private final FileChannel channel;
+
+	/** The file size in bytes. */
+	private final long size;
+
+	/** The currently mapped window. */
+	private MappedByteBuffer window;
+
+	/** The file offset of the current window. */
+	private long windowStart = 0;
+
+	/** The current read position in the file. */
+	private long pos = 0;
+
+	/**
+	 * Constructor; maps the first window of the specified file.
+	 */
+	public MappedTextFile(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		try {
+			this.size = channel.size();
+			map(0);
+		} catch(IOException e) {
+			raf.close();
+			throw e;
+		} catch(RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the size of the file in bytes.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the current read position.
+	 */
+	public long position() {
+		return pos;
+	}
+
+	/**
+	 * Closes the underlying file channel. Windows which are already
+	 * mapped stay valid until they are garbage collected.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void map(long start) throws IOException {
+		windowStart = start;
+		long len = Math.min(WINDOW_SIZE, size - start);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+	}
+
+	/**
+	 * Makes sure that the byte at the current position is mapped.
+	 * @return false at the end of the file.
+	 */
+	private boolean ensureMapped() throws IOException {
+		if(pos >= size)
+			return false;
+		if(pos < windowStart || pos >= windowStart + window.limit())
+			map(pos);
+		return true;
+	}
+
+	/**
+	 * Returns the byte at the current position and advances, or -1
+	 * at the end of the file.
+	 */
+	private int read() throws IOException {
+		if(!ensureMapped())
+			return -1;
+		return window.get((int)(pos++ - windowStart)) & 0xff;
+	}
+
+	/**
+	 * Skips one line. Line terminators are '\n', '\r' and "\r\n",
+	 * as in BufferedReader.readLine().
+	 * @return false if there is no more line.
+	 */
+	public boolean skipLine() throws IOException {
+		if(pos >= size)
+			return false;
+		while(ensureMapped()) {
+			int off = (int)(pos - windowStart);
+			int lim = window.limit();
+			while(off < lim) {
+				byte b = window.get(off++);
+				if(b == '\n') {
+					pos = windowStart + off;
+					return true;
+				}
+				if(b == '\r') {
+					pos = windowStart + off;
+					if(ensureMapped() && window.get((int)(pos - windowStart)) == '\n')
+						pos++;
+					return true;
+				}
+			}
+			pos = windowStart + lim;
+		}
+		return true;
+	}
+
+	/**
+	 * Skips the specified number of lines.
+	 */
+	public void skipLines(int n) throws IOException {
+		for(int i = 0; i < n && skipLine(); i++)
+			;
+	}
+
+	/**
+	 * Counts the lines from the current position to the end of the file,
+	 * without changing the current position.
+	 */
+	public int countLines() throws IOException {
+		long start = pos;
+		int n = 0;
+		boolean lastWasCR = false;
+		boolean lastWasTerminator = true;
+		while(ensureMapped()) {
+			int off = (int)(pos - windowStart);
+			int lim = window.limit();
+			for(; off < lim; off++) {
+				byte b = window.get(off);
+				if(b == '\n') {
+					if(!lastWasCR)
+						n++;
+					lastWasCR = false;
+					lastWasTerminator = true;
+				} else if(b == '\r') {
+					n++;
+					lastWasCR = true;
+					lastWasTerminator = true;
+				} else {
+					lastWasCR = false;
+					lastWasTerminator = false;
+				}
+			}
+			pos = windowStart + lim;
+		}
+		// last line without terminator
+		if(!lastWasTerminator)
+			n++;
+		pos = start;
+		return n;
+	}
+
+	/**
+	 * Reads at most maxLines lines from the current position, decoded
+	 * with the platform's default charset, like FileReader does.
+	 */
+	public String[] readLines(int maxLines) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		Charset cs = Charset.defaultCharset();
+		byte[] tmp = new byte[256];
+		while(lines.size() < maxLines && pos < size) {
+			long start = pos;
+			skipLine();
+			int len = (int)(pos - start);
+			if(len > tmp.length)
+				tmp = new byte[Math.max(len, 2 * tmp.length)];
+			pos = start;
+			for(int i = 0; i < len; i++)
+				tmp[i] = (byte)read();
+			// strip the line terminator
+			while(len > 0 && (tmp[len - 1] == '\n' || tmp[len - 1] == '\r'))
+				len--;
+			lines.add(new String(tmp, 0, len, cs));
+		}
+		String[] ret = new String[lines.size()];
+		lines.toArray(ret);
+		return ret;
+	}
+
+	/**
+	 * Returns a Reader which returns the bytes from the current position
+	 * on as ISO-8859-1 characters. Reading from it advances the position
+	 * of this MappedTextFile.
+	 */
+	public Reader reader() {
+		return reader(null);
+	}
+
+	/**
+	 * Like reader(), but notifies the given listener after each
+	 * chunk that is read, and throws an InterruptedIOException if
+	 * the reading thread was interrupted.
+	 * @param listener The progress listener, may be null.
+	 */
+	public Reader reader(final ActogramReader.ProgressListener listener) {
+		return new Reader() {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				if(Thread.interrupted())
+					throw new InterruptedIOException("Reading was cancelled");
+				if(listener != null)
+					listener.progressChanged(pos, size);
+				if(!ensureMapped())
+					return -1;
+				int o = (int)(pos - windowStart);
+				int n = Math.min(len, window.limit() - o);
+				for(int i = 0; i < n; i++)
+					cbuf[off + i] = (char)(window.get(o + i) & 0xff);
+				pos += n;
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				MappedTextFile.this.close();
+			}
+		};
+	}
+}
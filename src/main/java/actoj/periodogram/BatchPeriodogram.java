@@ -0,0 +1,549 @@
+package actoj.periodogram;
+
+import ij.measure.ResultsTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import actoj.core.Actogram;
+import actoj.core.FloatStorage;
+import actoj.core.TimeInterval;
+import actoj.util.Filters;
+import actoj.util.PeakFinder;
+
+/**
+ * Calculates periodograms for many actograms with the same settings,
+ * e.g. for all animals of a screen, and summarizes them in a table.
+ *
+ * All actograms are preprocessed (smoothed and downsampled) in
+ * parallel. For the Fourier and the Lomb-Scargle method, whose cost is
+ * dominated by the evaluation of sines and cosines which only depend on
+ * the number of samples and the trial period, the trigonometric tables
+ * are calculated once per trial period and shared by all actograms,
+ * which yields the same values as the single periodograms. The other
+ * methods calculate one periodogram per actogram, in parallel.
+ */
+public class BatchPeriodogram {
+
+	public static final int FOURIER              = 0;
+	public static final int ENRIGHT              = 1;
+	public static final int LOMB_SCARGLE         = 2;
+	public static final int FOURIER_FFT          = 3;
+	public static final int LOMB_SCARGLE_FAST    = 4;
+
+	/** Method names, in the order of the constants above. */
+	public static final String[] METHODS = new String[] {
+		"Fourier", "Chi-Square", "Lomb-Scargle", "Fourier (FFT)",
+		"Lomb-Scargle (fast)" };
+
+	/** Interval in which the calling thread reports progress, in ms. */
+	private static final int PROGRESS_INTERVAL = 100;
+
+	/**
+	 * The settings which are shared by all periodograms of a batch.
+	 */
+	public static class Config {
+		public final int method;
+		public final TimeInterval fromPeriod, toPeriod;
+		public final float sigma;
+		public final int stepsize;
+		public final double pLevel;
+
+		/**
+		 * @param method     One of FOURIER, ENRIGHT, LOMB_SCARGLE,
+		 *                   FOURIER_FFT, LOMB_SCARGLE_FAST.
+		 * @param fromPeriod The shortest trial period.
+		 * @param toPeriod   The longest trial period (exclusive).
+		 * @param sigma      Standard deviation of the gaussian
+		 *                   smoothing, in samples, or 0.
+		 * @param stepsize   Downsampling factor, or 1.
+		 * @param pLevel     The significance level.
+		 */
+		public Config(int method, TimeInterval fromPeriod, TimeInterval toPeriod,
+				float sigma, int stepsize, double pLevel) {
+			this.method = method;
+			this.fromPeriod = fromPeriod;
+			this.toPeriod = toPeriod;
+			this.sigma = sigma;
+			this.stepsize = stepsize;
+			this.pLevel = pLevel;
+		}
+	}
+
+	/**
+	 * The periodogram of one actogram.
+	 */
+	public static class Result {
+		public final String name;
+		public final String method;
+		public final String responseName;
+		/** The unit of the periods. */
+		public final String unit;
+		/** The trial periods, calibrated in unit. */
+		public final float[] period;
+		public final float[] values;
+		public final float[] pValues;
+		public final boolean hasPValues;
+		/** The indices of the peaks, highest first. */
+		public final int[] peaks;
+		/** The index of the highest peak, or -1 if there is none. */
+		public final int peak;
+
+		Result(String name, String method, String responseName, String unit,
+				float[] period, float[] values, float[] pValues, boolean hasPValues) {
+			this.name = name;
+			this.method = method;
+			this.responseName = responseName;
+			this.unit = unit;
+			this.period = period;
+			this.values = values;
+			this.pValues = pValues;
+			this.hasPValues = hasPValues;
+
+			// find the highest peak, relative to the significance level
+			float[] relatives = values.clone();
+			if(hasPValues)
+				for(int i = 0; i < relatives.length; i++)
+					relatives[i] -= pValues[i];
+			this.peaks = relatives.length > 0
+				? PeakFinder.findPeaks(relatives)
+				: new int[0];
+			this.peak = peaks.length > 0 ? peaks[0] : -1;
+		}
+
+		public float getPeakPeriod() {
+			return peak < 0 ? Float.NaN : period[peak];
+		}
+
+		public float getPeakPower() {
+			return peak < 0 ? Float.NaN : values[peak];
+		}
+
+		public float getPeakThreshold() {
+			return peak < 0 || !hasPValues ? Float.NaN : pValues[peak];
+		}
+
+		public boolean isSignificant() {
+			return peak >= 0 && hasPValues && values[peak] > pValues[peak];
+		}
+	}
+
+	/**
+	 * Calculates the periodograms of the given actograms, all within the
+	 * data range fromData (inclusive) to toData (exclusive).
+	 * @param listener Notified about the number of finished trial
+	 *                 periods, summed over all actograms; may be null.
+	 * @throws IllegalArgumentException if the given actograms don't agree
+	 *         in SAMPLES_PER_PERIOD, interval and interval unit.
+	 */
+	public static Result[] calculate(List<Actogram> actograms,
+			final int fromData, final int toData, final Config config,
+			Periodogram.ProgressListener listener) {
+		int n = actograms.size();
+		if(n == 0)
+			return new Result[0];
+		Actogram first = actograms.get(0);
+		for(Actogram a : actograms) {
+			if(a.SAMPLES_PER_PERIOD != first.SAMPLES_PER_PERIOD)
+				throw new IllegalArgumentException("Given actograms don't have the same number of samples per period");
+			if(!a.interval.equals(first.interval))
+				throw new IllegalArgumentException("Given actograms don't have the same interval duration");
+			if(!a.unit.equals(first.unit))
+				throw new IllegalArgumentException("Given actograms don't have the same units");
+		}
+
+		// smooth and downsample all actograms in parallel
+		final Actogram[] processed = new Actogram[n];
+		final int[] range = new int[2];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int a = 0; a < n; a++) {
+			final int index = a;
+			final Actogram org = actograms.get(a);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int[] r = new int[2];
+					processed[index] = preprocess(org, fromData, toData, config, r);
+					if(index == 0) {
+						range[0] = r[0];
+						range[1] = r[1];
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks, null, 0, null);
+
+		Actogram acto = processed[0];
+		int sIdx = range[0];
+		int cIdx = Math.min(range[1], minSize(processed));
+		int fromP = acto.getIndexForTime(config.fromPeriod);
+		int toP = acto.getIndexForTime(config.toPeriod);
+		float factor = acto.interval.intervalIn(acto.unit);
+
+		switch(config.method) {
+			case FOURIER:
+			case LOMB_SCARGLE:
+				return calculateShared(processed, sIdx, cIdx, fromP, toP,
+					factor, config, listener);
+			default:
+				return calculateSeparately(processed, sIdx, cIdx, fromP, toP,
+					factor, config, listener);
+		}
+	}
+
+	/**
+	 * Returns a table with one row per actogram, listing the period and
+	 * power of the highest peak, and the significance threshold.
+	 */
+	public static ResultsTable toResultsTable(Result[] results) {
+		ResultsTable rt = new ResultsTable();
+		for(Result r : results) {
+			rt.incrementCounter();
+			rt.addLabel(r.name);
+			rt.addValue("Period (" + r.unit + ")", r.getPeakPeriod());
+			rt.addValue(r.responseName, r.getPeakPower());
+			rt.addValue("Threshold", r.getPeakThreshold());
+			rt.addValue("Significant", r.hasPValues
+				? (r.isSignificant() ? 1 : 0)
+				: Double.NaN);
+		}
+		return rt;
+	}
+
+	/**
+	 * Smoothes and downsamples the given actogram, and stores the data
+	 * range in the downsampled actogram in range.
+	 */
+	static Actogram preprocess(Actogram org, int fromData, int toData,
+			Config config, int[] range) {
+		Actogram acto = org;
+		if(config.sigma > 0) {
+			float[] kernel = Filters.makeGaussianKernel(config.sigma);
+			acto = org.getSmoothed(kernel);
+		}
+		range[0] = fromData;
+		range[1] = toData;
+		if(config.stepsize > 1) {
+			acto = acto.getDownsampled(config.stepsize);
+			double zoom = org.SAMPLES_PER_PERIOD / (double)acto.SAMPLES_PER_PERIOD;
+			range[0] = (int)Math.round(fromData / zoom);
+			range[1] = (int)Math.round(toData / zoom);
+		}
+		return acto;
+	}
+
+	private static int minSize(Actogram[] actograms) {
+		int min = Integer.MAX_VALUE;
+		for(Actogram a : actograms)
+			min = Math.min(min, a.size());
+		return min;
+	}
+
+	/**
+	 * Calculates one periodogram per actogram, in parallel.
+	 */
+	private static Result[] calculateSeparately(final Actogram[] actograms,
+			final int sIdx, final int cIdx, final int fromP, final int toP,
+			final float factor, final Config config,
+			Periodogram.ProgressListener listener) {
+		final Result[] results = new Result[actograms.length];
+		final AtomicInteger done = new AtomicInteger();
+		final Periodogram.Options options = new Periodogram.Options(1, null);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int a = 0; a < actograms.length; a++) {
+			final int index = a;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					Actogram acto = actograms[index];
+					Periodogram p = create(config.method, acto,
+						sIdx, cIdx, fromP, toP, config.pLevel, options);
+					float[] period = p.getPeriod();
+					for(int i = 0; i < period.length; i++)
+						period[i] *= factor;
+					results[index] = new Result(acto.name, p.getMethod(),
+						p.getResponseName(), acto.unit.abbr, period,
+						p.getPeriodogramValues(), p.getPValues(),
+						p.canCalculatePValues());
+					done.addAndGet(toP - fromP);
+					return null;
+				}
+			});
+		}
+		runAll(tasks, done, actograms.length * (toP - fromP), listener);
+		return results;
+	}
+
+	/**
+	 * Creates the periodogram for the given method.
+	 */
+	public static Periodogram create(int method, Actogram acto, int fromData,
+			int toData, int fromP, int toP, double pLevel,
+			Periodogram.Options options) {
+		switch(method) {
+			case FOURIER:
+				return new FourierPeriodogram(acto, fromData, toData,
+					fromP, toP, pLevel, options);
+			case ENRIGHT:
+				return new EnrightPeriodogram(acto, fromData, toData,
+					fromP, toP, pLevel, options);
+			case LOMB_SCARGLE:
+				return new LombScarglePeriodogram(acto, fromData, toData,
+					fromP, toP, pLevel, options);
+			case FOURIER_FFT:
+				return new FastFourierPeriodogram(acto, fromData, toData,
+					fromP, toP, pLevel, options);
+			case LOMB_SCARGLE_FAST:
+				return new FastLombScarglePeriodogram(acto, fromData, toData,
+					fromP, toP, pLevel, options);
+			default: throw new IllegalArgumentException(
+					"Invalid periodogram method: " + method);
+		}
+	}
+
+	/**
+	 * Calculates the Fourier or Lomb-Scargle periodograms of all
+	 * actograms at once: The trial periods are split into chunks, which
+	 * are processed in parallel; for each trial period, the sines and
+	 * cosines are tabulated once and applied to all actograms. The
+	 * arithmetic per actogram is the same as in FourierPeriodogram and
+	 * LombScarglePeriodogram, respectively.
+	 */
+	private static Result[] calculateShared(Actogram[] actograms,
+			int sIdx, int cIdx, final int fromP, final int toP,
+			float factor, final Config config,
+			Periodogram.ProgressListener listener) {
+		final int nA = actograms.length;
+		final int N = cIdx - sIdx;
+		final int nP = Math.max(0, toP - fromP);
+		final boolean fourier = config.method == FOURIER;
+
+		final FloatStorage[] data = new FloatStorage[nA];
+		final double[] mean = new double[nA];
+		final double[] sigma = new double[nA];
+		for(int a = 0; a < nA; a++) {
+			data[a] = actograms[a].getStorage().view(sIdx, cIdx);
+			if(!fourier) {
+				double M = 0;
+				for(int i = 0; i < N; i++)
+					M += data[a].get(i);
+				M /= N;
+				double s = 0;
+				for(int i = 0; i < N; i++) {
+					double diff = data[a].get(i) - M;
+					s += diff * diff;
+				}
+				mean[a] = M;
+				sigma[a] = s / N;
+			}
+		}
+
+		final float[][] values = new float[nA][nP];
+		final AtomicInteger done = new AtomicInteger();
+		int nChunks = Math.min(nP, 8 * Runtime.getRuntime().availableProcessors());
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c = 0; c < nChunks; c++) {
+			final int from = fromP + (int)((long)nP * c / nChunks);
+			final int to = fromP + (int)((long)nP * (c + 1) / nChunks);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					double[] cos = new double[N];
+					double[] sin = new double[N];
+					for(int P = from; P < to; P++) {
+						if(fourier)
+							fourier(P, data, N, cos, sin, values, P - fromP);
+						else
+							lombScargle(P, data, N, mean, sigma, cos, sin, values, P - fromP);
+						done.incrementAndGet();
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks, done, nP, listener);
+
+		// periods and p values, as in the single periodograms
+		float[] period = new float[nP];
+		for(int i = 0; i < nP; i++)
+			period[i] = (fromP + i) * factor;
+		String method = fourier ? "Fourier" : "Lomb-Scargle";
+		String response = fourier ? "R^2" : "PN";
+		Result[] results = new Result[nA];
+		for(int a = 0; a < nA; a++) {
+			float[] pValues = new float[nP];
+			double pV;
+			if(fourier) {
+				float sumR2 = 0f;
+				for(int i = 0; i < nP; i++)
+					sumR2 += values[a][i];
+				pV = sumR2 * (1 - Math.pow(config.pLevel / N, 1.0 / (N - 1)));
+			} else {
+				pV = -Math.log(1 - Math.pow(1 - config.pLevel, 1.0 / N));
+			}
+			for(int i = 0; i < nP; i++)
+				pValues[i] = (float)pV;
+			results[a] = new Result(actograms[a].name, method, response,
+				actograms[a].unit.abbr, period.clone(), values[a], pValues,
+				!fourier);
+		}
+		return results;
+	}
+
+	/**
+	 * R^2 of all actograms for period P, like FourierPeriodogram.R2().
+	 */
+	private static void fourier(int P, FloatStorage[] data, int N,
+			double[] cos, double[] sin, float[][] values, int idx) {
+		float j = N / (float)P;
+		for(int i = 0; i < N; i++) {
+			double arg = 2 * Math.PI * j * i / N;
+			cos[i] = Math.cos(arg);
+			sin[i] = Math.sin(arg);
+		}
+		for(int a = 0; a < data.length; a++) {
+			FloatStorage d = data[a];
+			double aj = 0.0, bj = 0.0;
+			for(int i = 0; i < N; i++) {
+				float v = d.get(i);
+				aj += v * cos[i];
+				bj += v * sin[i];
+			}
+			aj = aj * 2 / N;
+			bj = bj * 2 / N;
+			values[a][idx] = (float)(aj * aj + bj * bj);
+		}
+	}
+
+	/**
+	 * PN of all actograms for period P, like LombScarglePeriodogram.
+	 */
+	private static void lombScargle(int P, FloatStorage[] data, int N,
+			double[] mean, double[] sigma,
+			double[] cos, double[] sin, float[][] values, int idx) {
+		// calculate delta
+		double fourPiByP = 4 * Math.PI / P;
+		double sinSum = 0;
+		double cosSum = 0;
+		for(int i = 0; i < N; i++) {
+			double t = i * fourPiByP;
+			sinSum += Math.sin(t);
+			cosSum += Math.cos(t);
+		}
+		double delta = Math.atan(sinSum / cosSum) / fourPiByP;
+
+		// the denominators don't depend on the data
+		double denom1 = 0, denom2 = 0;
+		for(int i = 0; i < N; i++) {
+			double arg2 = 2 * Math.PI * (i - delta) / P;
+			double c = Math.cos(arg2);
+			double s = Math.sin(arg2);
+			cos[i] = c;
+			sin[i] = s;
+			denom1 += (c * c);
+			denom2 += (s * s);
+		}
+
+		for(int a = 0; a < data.length; a++) {
+			FloatStorage d = data[a];
+			double M = mean[a];
+			double nom1 = 0, nom2 = 0;
+			for(int i = 0; i < N; i++) {
+				double arg1 = d.get(i) - M;
+				nom1 += (arg1 * cos[i]);
+				nom2 += (arg1 * sin[i]);
+			}
+			double PN = ((nom1 * nom1 / denom1) +
+					(nom2 * nom2 / denom2)) / (2 * sigma[a]);
+			values[a][idx] = (float)PN;
+		}
+	}
+
+	/**
+	 * Runs the given tasks as fork/join subtasks if called from a
+	 * ForkJoinPool, e.g. from a batch of batches, and otherwise on a
+	 * dedicated pool, reporting the progress from the calling thread
+	 * until all are finished.
+	 */
+	private static void runAll(List<Callable<Void>> tasks, AtomicInteger done,
+			int total, Periodogram.ProgressListener listener) {
+		if(tasks.isEmpty())
+			return;
+		TaskRange all = new TaskRange(tasks, 0, tasks.size());
+
+		if(ForkJoinTask.inForkJoinPool()) {
+			all.invoke();
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			pool.execute(all);
+			while(true) {
+				try {
+					all.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+					break;
+				} catch(TimeoutException e) {
+					if(listener != null)
+						listener.progressChanged(done.get(), total);
+				}
+			}
+			if(listener != null)
+				listener.progressChanged(total, total);
+		} catch(InterruptedException e) {
+			all.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Periodogram calculation interrupted", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Splits a range of tasks until it is a single one, and runs it.
+	 */
+	@SuppressWarnings("serial")
+	private static final class TaskRange extends RecursiveAction {
+		private final List<Callable<Void>> tasks;
+		private final int from, to;
+
+		TaskRange(List<Callable<Void>> tasks, int from, int to) {
+			this.tasks = tasks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new TaskRange(tasks, from, mid),
+					new TaskRange(tasks, mid, to));
+				return;
+			}
+			try {
+				tasks.get(from).call();
+			} catch(RuntimeException e) {
+				throw e;
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package actoj.periodogram;
 
+import java.util.Arrays;
+
 import actoj.core.Actogram;
 
 public class EnrightPeriodogram extends Periodogram {
@@ -10,6 +12,12 @@ public class EnrightPeriodogram extends Periodogram {
 		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel);
 	}
 
+	// to exclusive
+	public EnrightPeriodogram(Actogram acto, int fromData,
+		int toData, int fromPeriod, int toPeriod, double pLevel, Options options) {
+		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel, options);
+	}
+
 	@Override
 	public String getMethod() {
 		return "Chi-Square";
@@ -20,38 +28,55 @@ public class EnrightPeriodogram extends Periodogram {
 		return "Qp";
 	}
 
+	private double M, mse;
+
 	@Override
-	protected void calculatePeriodogram(double pLevel) {
-		double M = 0;
+	protected void prepare(double pLevel) {
+		M = 0;
 		for(int i = 0; i < N; i++)
-			M += measurements[i];
+			M += measurements.get(i);
 		M /= N;
 
-		double mse = 0;
+		mse = 0;
 		for(int i = 0; i < N; i++) {
-			double diff = measurements[i] - M;
+			double diff = measurements.get(i) - M;
 			mse += diff * diff;
 		}
 		mse /= N;
+	}
+
+	@Override
+	protected void calculatePeriods(int fromP, int toP, double pLevel) {
+		double[] Mh = new double[toP];
+		for(int P = fromP; P < toP; P++)
+			calculateQp(P, Mh, pLevel);
+	}
 
-		for(int P = fromPeriod; P < toPeriod; P++) {
-			double Qp = 0;
-			int K = N / P; // integer division
-			for(int h = 0; h < P; h++) {
-				double Mh = 0;
-				for(int k = 0; k < K; k++)
-					Mh += measurements[h + k * P];
-				Mh /= K;
-				double diff = Mh - M;
-				Qp += diff * diff;
-			}
-			Qp = Qp * K / mse;
-			period[P - fromPeriod] = P;
-			periodogramValues[P - fromPeriod] = (float)Qp;
-			double pv = pLevel / 10.0;
-			pValues[P - fromPeriod] =
-				(float)chisquare_cdf_inv(1 - pv, P-1);
+	/**
+	 * Calculates Qp for a single period P. The fold means are
+	 * accumulated row by row, i.e. walking through the data
+	 * sequentially; each Mh still sums its values in the same order
+	 * as the per-column loop, so that Qp is exactly reproduced.
+	 * @param Mh Scratch buffer of at least P elements.
+	 */
+	private void calculateQp(int P, double[] Mh, double pLevel) {
+		int K = N / P; // integer division
+		Arrays.fill(Mh, 0, P, 0);
+		for(int k = 0, offs = 0; k < K; k++, offs += P)
+			for(int h = 0; h < P; h++)
+				Mh[h] += measurements.get(offs + h);
+
+		double Qp = 0;
+		for(int h = 0; h < P; h++) {
+			double diff = Mh[h] / K - M;
+			Qp += diff * diff;
 		}
+		Qp = Qp * K / mse;
+		period[P - fromPeriod] = P;
+		periodogramValues[P - fromPeriod] = (float)Qp;
+		double pv = pLevel / 10.0;
+		pValues[P - fromPeriod] =
+			(float)chisquare_cdf_inv(1 - pv, P-1);
 	}
 
 	@SuppressWarnings("unused")
@@ -0,0 +1,190 @@
+package actoj.periodogram;
+
+import java.util.Random;
+
+import actoj.core.Actogram;
+import actoj.core.TimeInterval;
+import actoj.util.FFT;
+
+/**
+ * Calculates the same periodogram as FourierPeriodogram, but instead of
+ * evaluating the Fourier coefficients for each period separately, the
+ * spectrum is evaluated with chirp-z transforms on a fine, uniform
+ * frequency grid around the requested periods, and interpolated at
+ * the frequencies 1 / P. This needs O((N + M) log(N + M)) operations
+ * for M grid points, instead of O(N * P) sine and cosine evaluations.
+ */
+public class FastFourierPeriodogram extends Periodogram {
+
+	/** Grid points per 1 / N frequency spacing. */
+	private static final int OVERSAMPLING = 32;
+
+	/** The maximum number of grid points which are evaluated at once. */
+	private static final int MAX_GRID = 1 << 20;
+
+	public FastFourierPeriodogram(Actogram acto, int fromData,
+		int toData, int fromPeriod, int toPeriod, double pLevel) {
+		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel);
+	}
+
+	public FastFourierPeriodogram(Actogram acto, int fromData,
+		int toData, int fromPeriod, int toPeriod, double pLevel, Options options) {
+		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel, options);
+	}
+
+	public String getMethod() {
+		return "Fourier (FFT)";
+	}
+
+	public String getResponseName() {
+		return "R^2";
+	}
+
+	public boolean canCalculatePValues() {
+		return false;
+	}
+
+	/** The frequency grid f0 + k * df. */
+	private double f0, df;
+
+	/**
+	 * Evaluates the spectrum on the grid around the trial frequencies,
+	 * and interpolates the periodogram values from it. The grid is
+	 * evaluated in pieces of at most MAX_GRID points, which skip the
+	 * parts of the grid between trial frequencies that are far apart,
+	 * i.e. at short periods, so that the memory doesn't grow with
+	 * N / fromPeriod.
+	 */
+	protected void prepare(double pLevel) {
+		int n = toPeriod - fromPeriod;
+		if(n <= 0)
+			return;
+		if(fromPeriod < 1)
+			throw new IllegalArgumentException("Periods must be positive");
+
+		// frequencies in cycles per sample
+		double fmin = 1.0 / (toPeriod - 1);
+		df = 1.0 / ((double)N * OVERSAMPLING);
+		// two grid points margin on either side for the interpolation
+		f0 = fmin - 2 * df;
+
+		// from the longest period, i.e. the lowest frequency, on
+		int i = n - 1;
+		while(i >= 0) {
+			int from = gridIndex(fromPeriod + i) - 1;
+			int j = i;
+			while(j > 0 && gridIndex(fromPeriod + j - 1) + 3 - from <= MAX_GRID)
+				j--;
+			int m = gridIndex(fromPeriod + j) + 3 - from;
+
+			double[] re = new double[m];
+			double[] im = new double[m];
+			FFT.chirpZ(measurements, f0 + from * df, df, m, re, im);
+
+			// Shift the time origin to the center of the data: This
+			// only changes the phase, but makes the spectrum vary much
+			// more slowly with the frequency, and thus easier to
+			// interpolate.
+			for(int k = 0; k < m; k++) {
+				double phase = Math.PI * (f0 + (from + k) * df) * (N - 1);
+				phase -= 2 * Math.PI * Math.floor(phase / (2 * Math.PI));
+				double c = Math.cos(phase), s = Math.sin(phase);
+				double r = re[k] * c - im[k] * s;
+				im[k] = re[k] * s + im[k] * c;
+				re[k] = r;
+			}
+
+			for(int q = j; q <= i; q++)
+				periodogramValues[q] = interpolate(re, im, from, fromPeriod + q);
+			i = j - 1;
+		}
+	}
+
+	/**
+	 * Returns the index of the grid point at or below the frequency of
+	 * the given period.
+	 */
+	private int gridIndex(int p) {
+		return (int)Math.floor((1.0 / p - f0) / df);
+	}
+
+	/**
+	 * Returns the periodogram value for period p, interpolated from the
+	 * spectrum on the grid points from, from + 1, ...
+	 */
+	private float interpolate(double[] re, double[] im, int from, int p) {
+		// cubic Lagrange interpolation between the grid points
+		double t = (1.0 / p - f0) / df;
+		int k = (int)Math.floor(t);
+		double u = t - k;
+		k -= from;
+		double w0 = -u * (u - 1) * (u - 2) / 6;
+		double w1 = (u + 1) * (u - 1) * (u - 2) / 2;
+		double w2 = -(u + 1) * u * (u - 2) / 2;
+		double w3 = (u + 1) * u * (u - 1) / 6;
+		double a = w0 * re[k - 1] + w1 * re[k] + w2 * re[k + 1] + w3 * re[k + 2];
+		double b = w0 * im[k - 1] + w1 * im[k] + w2 * im[k + 1] + w3 * im[k + 2];
+
+		a = a * 2 / N;
+		b = b * 2 / N;
+		return (float)(a * a + b * b);
+	}
+
+	/**
+	 * The values are already interpolated in prepare().
+	 */
+	protected void calculatePeriods(int fromP, int toP, double pLevel) {
+		for(int p = fromP; p < toP; p++)
+			period[p - fromPeriod] = p;
+	}
+
+	protected void finish(double pLevel) {
+		int n = toPeriod - fromPeriod;
+		float sumR2 = 0f;
+		for(int i = 0; i < n; i++)
+			sumR2 += periodogramValues[i];
+		double pV = sumR2 * (1 - Math.pow(pLevel / N, 1.0 / (N - 1)));
+		for(int i = 0; i < n; i++)
+			pValues[i] = (float)pV;
+	}
+
+	/**
+	 * Compares the results and the run time with FourierPeriodogram for
+	 * a simulated 1-minute recording of the given number of days
+	 * (default 60), scanned over periods between 16 and 32 hours.
+	 */
+	public static void main(String[] args) {
+		int days = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+		int spp = 1440;
+		float[] data = new float[days * spp];
+		Random rand = new Random(42);
+		for(int i = 0; i < data.length; i++) {
+			double phase = 2 * Math.PI * i / 1465.0;
+			data[i] = (float)Math.max(0, 20 * Math.sin(phase) + 5 * rand.nextGaussian());
+		}
+		Actogram a = new Actogram("test", data, spp,
+			new TimeInterval(1, TimeInterval.Units.MINUTES),
+			TimeInterval.Units.MINUTES);
+
+		for(int r = 0; r < 3; r++) {
+			long start = System.nanoTime();
+			float[] exact = new FourierPeriodogram(a, 0, data.length,
+				16 * 60, 32 * 60, 0.05).getPeriodogramValues();
+			long t1 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			float[] fast = new FastFourierPeriodogram(a, 0, data.length,
+				16 * 60, 32 * 60, 0.05).getPeriodogramValues();
+			long t2 = System.nanoTime() - start;
+
+			double max = 0, maxErr = 0;
+			for(int i = 0; i < exact.length; i++) {
+				max = Math.max(max, exact[i]);
+				maxErr = Math.max(maxErr, Math.abs(exact[i] - fast[i]));
+			}
+			System.out.printf("direct: %.1f ms, chirp-z: %.1f ms, " +
+				"speedup %.0fx, max. error %.2e (relative to max. R^2)%n",
+				t1 * 1e-6, t2 * 1e-6, (double)t1 / t2, maxErr / max);
+		}
+	}
+}
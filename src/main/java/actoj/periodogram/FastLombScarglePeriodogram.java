@@ -0,0 +1,164 @@
+package actoj.periodogram;
+
+import java.util.Random;
+
+import actoj.core.Actogram;
+import actoj.core.TimeInterval;
+
+/**
+ * Calculates the same periodogram as LombScarglePeriodogram, without
+ * evaluating sin and cos for every sample: For evenly spaced samples,
+ * the sums over sin(2wt) and cos(2wt) which determine the time shift,
+ * and the sums over the squared sines and cosines in the denominators,
+ * are geometric series with a closed form. The remaining sums over the
+ * data are accumulated with an angle-addition recurrence, which rotates
+ * (cos, sin) by the angle w from one sample to the next.
+ */
+public class FastLombScarglePeriodogram extends Periodogram {
+
+	/**
+	 * Number of recurrence steps after which sin and cos are evaluated
+	 * exactly again, to limit the accumulation of rounding errors.
+	 */
+	private static final int RESEED_INTERVAL = 1024;
+
+	// to exclusive
+	public FastLombScarglePeriodogram(Actogram acto, int fromData,
+		int toData, int fromPeriod, int toPeriod, double pLevel) {
+		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel);
+	}
+
+	// to exclusive
+	public FastLombScarglePeriodogram(Actogram acto, int fromData,
+		int toData, int fromPeriod, int toPeriod, double pLevel, Options options) {
+		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel, options);
+	}
+
+	public String getMethod() {
+		return "Lomb-Scargle (fast)";
+	}
+
+	public String getResponseName() {
+		return "PN";
+	}
+
+	/** The data, minus the mean. */
+	private double[] y;
+
+	private double sigma;
+
+	protected void prepare(double pLevel) {
+		// calculate mean
+		double M = 0;
+		for(int i = 0; i < N; i++)
+			M += measurements.get(i);
+		M /= N;
+
+		// calculate variance, and subtract the mean once for all periods
+		sigma = 0;
+		y = new double[N];
+		for(int i = 0; i < N; i++) {
+			y[i] = measurements.get(i) - M;
+			sigma += y[i] * y[i];
+		}
+		sigma /= N;
+	}
+
+	protected void calculatePeriods(int fromP, int toP, double pLevel) {
+		for(int P = fromP; P < toP; P++) {
+			double w = 2 * Math.PI / P;
+
+			// sum_i exp(2iwt) = exp(iw(N-1)) * sin(Nw) / sin(w)
+			double sin = 0;
+			double cos = N;
+			double sinw = Math.sin(w);
+			if(Math.abs(sinw) > 1e-12) {
+				double r = Math.sin(N * w) / sinw;
+				sin = Math.sin(w * (N - 1)) * r;
+				cos = Math.cos(w * (N - 1)) * r;
+			}
+			double delta = Math.atan(sin / cos) / (2 * w);
+
+			// sum_i cos(2w(t - delta)), from which the sums over the
+			// squared cosines and sines follow
+			double c2d = Math.cos(2 * w * delta), s2d = Math.sin(2 * w * delta);
+			double cos2 = cos * c2d + sin * s2d;
+			double denom1 = (N + cos2) / 2;
+			double denom2 = (N - cos2) / 2;
+
+			// calculate PN
+			double cw = Math.cos(w), sw = Math.sin(w);
+			double nom1 = 0, nom2 = 0;
+			for(int start = 0; start < N; start += RESEED_INTERVAL) {
+				int end = Math.min(N, start + RESEED_INTERVAL);
+				double arg = w * (start - delta);
+				double c = Math.cos(arg);
+				double s = Math.sin(arg);
+				for(int i = start; i < end; i++) {
+					nom1 += y[i] * c;
+					nom2 += y[i] * s;
+					double cn = c * cw - s * sw;
+					s = s * cw + c * sw;
+					c = cn;
+				}
+			}
+			// At the Nyquist period (P = 2), all sines vanish, and the
+			// second term is 0 / 0; it is dropped instead of evaluating
+			// rounding noise.
+			double PN = nom1 * nom1 / denom1;
+			if(denom2 > 1e-9 * N)
+				PN += nom2 * nom2 / denom2;
+			PN /= 2 * sigma;
+			period[P - fromPeriod] = P;
+			periodogramValues[P - fromPeriod] = (float)PN;
+		}
+	}
+
+	protected void finish(double pLevel) {
+		// calculate p values
+		double pV = -Math.log(1 - Math.pow(1 - pLevel, 1.0 / N));
+
+		for(int i = 0; i < pValues.length; i++)
+			pValues[i] = (float)pV;
+	}
+
+	/**
+	 * Compares the results and the run time with LombScarglePeriodogram
+	 * for a simulated 1-minute recording of the given number of days
+	 * (default 10), scanned over periods between 16 and 32 hours.
+	 */
+	public static void main(String[] args) {
+		int days = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int spp = 1440;
+		float[] data = new float[days * spp];
+		Random rand = new Random(42);
+		for(int i = 0; i < data.length; i++) {
+			double phase = 2 * Math.PI * i / 1465.0;
+			data[i] = (float)Math.max(0, 20 * Math.sin(phase) + 5 * rand.nextGaussian());
+		}
+		Actogram a = new Actogram("test", data, spp,
+			new TimeInterval(1, TimeInterval.Units.MINUTES),
+			TimeInterval.Units.MINUTES);
+
+		for(int r = 0; r < 3; r++) {
+			long start = System.nanoTime();
+			float[] exact = new LombScarglePeriodogram(a, 0, data.length,
+				16 * 60, 32 * 60, 0.05).getPeriodogramValues();
+			long t1 = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			float[] fast = new FastLombScarglePeriodogram(a, 0, data.length,
+				16 * 60, 32 * 60, 0.05).getPeriodogramValues();
+			long t2 = System.nanoTime() - start;
+
+			double max = 0, maxErr = 0;
+			for(int i = 0; i < exact.length; i++) {
+				max = Math.max(max, exact[i]);
+				maxErr = Math.max(maxErr, Math.abs(exact[i] - fast[i]));
+			}
+			System.out.printf("direct: %.1f ms, recurrence: %.1f ms, " +
+				"speedup %.0fx, max. error %.2e (relative to max. PN)%n",
+				t1 * 1e-6, t2 * 1e-6, (double)t1 / t2, maxErr / max);
+		}
+	}
+}
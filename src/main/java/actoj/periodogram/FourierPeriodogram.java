@@ -1,6 +1,5 @@
 package actoj.periodogram;
 
-import ij.IJ;
 import actoj.core.Actogram;
 
 public class FourierPeriodogram extends Periodogram {
@@ -10,6 +9,11 @@ public class FourierPeriodogram extends Periodogram {
 		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel);
 	}
 
+	public FourierPeriodogram(Actogram acto, int fromData,
+		int toData, int fromPeriod, int toPeriod, double pLevel, Options options) {
+		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel, options);
+	}
+
 	public String getMethod() {
 		return "Fourier";
 	}
@@ -22,19 +26,20 @@ public class FourierPeriodogram extends Periodogram {
 		return false;
 	}
 
-	protected void calculatePeriodogram(double pLevel) {
-		int n = toPeriod - fromPeriod;
-		float sumR2 = 0f;
-		for(int i = 0; i < n; i++) {
-			int p = fromPeriod + i;
+	protected void calculatePeriods(int fromP, int toP, double pLevel) {
+		for(int p = fromP; p < toP; p++) {
+			int i = p - fromPeriod;
 			float j = N / (float)p;
 			period[i] = p;
-
-			float r2 = R2(j);
-			periodogramValues[i] = r2;
-			sumR2 += r2;
-			IJ.showProgress(i + 1, n);
+			periodogramValues[i] = R2(j);
 		}
+	}
+
+	protected void finish(double pLevel) {
+		int n = toPeriod - fromPeriod;
+		float sumR2 = 0f;
+		for(int i = 0; i < n; i++)
+			sumR2 += periodogramValues[i];
 		double pV = sumR2 * (1 - Math.pow(pLevel / N, 1.0 / (N - 1)));
 		for(int i = 0; i < n; i++)
 			pValues[i] = (float)pV;
@@ -44,8 +49,8 @@ public class FourierPeriodogram extends Periodogram {
 		double aj = 0.0, bj = 0.0;
 		for(int i = 0; i < N; i++) {
 			double arg = 2 * Math.PI * j * i / N;
-			aj += measurements[i] * Math.cos(arg);
-			bj += measurements[i] * Math.sin(arg);
+			aj += measurements.get(i) * Math.cos(arg);
+			bj += measurements.get(i) * Math.sin(arg);
 		}
 		aj = aj * 2 / N;
 		bj = bj * 2 / N;
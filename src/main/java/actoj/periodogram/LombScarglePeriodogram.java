@@ -1,6 +1,5 @@
 package actoj.periodogram;
 
-import ij.IJ;
 import actoj.core.Actogram;
 
 public class LombScarglePeriodogram extends Periodogram {
@@ -11,6 +10,12 @@ public class LombScarglePeriodogram extends Periodogram {
 		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel);
 	}
 
+	// to exclusive
+	public LombScarglePeriodogram(Actogram acto, int fromData,
+		int toData, int fromPeriod, int toPeriod, double pLevel, Options options) {
+		super(acto, fromData, toData, fromPeriod, toPeriod, pLevel, options);
+	}
+
 	public String getMethod() {
 		return "Lomb-Scargle";
 	}
@@ -19,24 +24,26 @@ public class LombScarglePeriodogram extends Periodogram {
 		return "PN";
 	}
 
-	protected void calculatePeriodogram(double pLevel) {
-		int n = toPeriod - fromPeriod;
+	private double M, sigma;
 
+	protected void prepare(double pLevel) {
 		// calculate mean
-		double M = 0;
+		M = 0;
 		for(int i = 0; i < N; i++)
-			M += measurements[i];
+			M += measurements.get(i);
 		M /= N;
 
 		// calculate variance
-		double sigma = 0;
+		sigma = 0;
 		for(int i = 0; i < N; i++) {
-			double diff = measurements[i] - M;
+			double diff = measurements.get(i) - M;
 			sigma += diff * diff;
 		}
 		sigma /= N;
+	}
 
-		for(int P = fromPeriod; P < toPeriod; P++) {
+	protected void calculatePeriods(int fromP, int toP, double pLevel) {
+		for(int P = fromP; P < toP; P++) {
 			// calculate delta
 			double fourPiByP = 4 * Math.PI / P;
 			double sin = 0;
@@ -51,7 +58,7 @@ public class LombScarglePeriodogram extends Periodogram {
 			// calculate PN
 			double nom1 = 0, denom1 = 0, nom2 = 0, denom2 = 0;
 			for(int i = 0; i < N; i++) {
-				double arg1 = measurements[i] - M;
+				double arg1 = measurements.get(i) - M;
 				double arg2 = 2 * Math.PI * (i - delta) / P;
 				double c = Math.cos(arg2);
 				double s = Math.sin(arg2);
@@ -64,9 +71,10 @@ public class LombScarglePeriodogram extends Periodogram {
 					(nom2 * nom2 / denom2)) / (2 * sigma);
 			period[P - fromPeriod] = P;
 			periodogramValues[P - fromPeriod] = (float)PN;
-			IJ.showProgress(P - fromPeriod + 1, n);
 		}
+	}
 
+	protected void finish(double pLevel) {
 		// calculate p values
 		double pV = -Math.log(1 - Math.pow(1 - pLevel, 1.0 / N));
 
@@ -74,4 +82,3 @@ public class LombScarglePeriodogram extends Periodogram {
 			pValues[i] = (float)pV;
 	}
 }
-
@@ -1,15 +1,81 @@
 package actoj.periodogram;
 
-import actoj.core.Actogram;
+import ij.IJ;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import actoj.core.Actogram;
+import actoj.core.FloatStorage;
+
+/**
+ * Base class for periodograms.
+ *
+ * The trial periods are independent of each other; subclasses calculate
+ * the values for a range of periods in calculatePeriods(), and the range
+ * fromPeriod..toPeriod is split into chunks which are processed on a
+ * ForkJoinPool. Each chunk writes only its own entries of the result
+ * arrays. Progress is reported from the calling thread only.
+ */
 public abstract class Periodogram {
 
+	/**
+	 * Listener which is notified about the number of trial periods
+	 * which are calculated.
+	 */
+	public static interface ProgressListener {
+		public void progressChanged(int done, int total);
+	}
+
+	/**
+	 * ProgressListener which shows the progress in the ImageJ status bar.
+	 */
+	public static final ProgressListener IJ_PROGRESS = new ProgressListener() {
+		@Override
+		public void progressChanged(int done, int total) {
+			IJ.showProgress(done, total);
+		}
+	};
+
+	/**
+	 * Options which control how a periodogram is calculated.
+	 */
+	public static class Options {
+
+		/** Default options: All cores, progress in the ImageJ status bar. */
+		public static final Options DEFAULT = new Options(0, IJ_PROGRESS);
+
+		/** The number of threads, or 0 to use all cores. */
+		public final int parallelism;
+
+		/** The progress listener, may be null. */
+		public final ProgressListener listener;
+
+		public Options(int parallelism, ProgressListener listener) {
+			this.parallelism = parallelism;
+			this.listener = listener;
+		}
+	}
+
+	/** Interval in which the calling thread reports progress, in ms. */
+	private static final int PROGRESS_INTERVAL = 100;
+
+	/** Number of chunks per thread, to balance the load. */
+	private static final int CHUNKS_PER_THREAD = 8;
+
 	protected final int N;
 
 	// in sample units
 	protected final int fromPeriod;
 	protected final int toPeriod;
-	protected final float[] measurements;
+
+	/** A read-only view on the analyzed range of the actogram. */
+	protected final FloatStorage measurements;
 
 	protected final float[] period;
 	protected final float[] periodogramValues;
@@ -18,10 +84,15 @@ public abstract class Periodogram {
 	// to exclusive
 	public Periodogram(Actogram acto, int fromData, int toData,
 		int fromPeriod, int toPeriod, double pLevel) {
+		this(acto, fromData, toData, fromPeriod, toPeriod, pLevel, Options.DEFAULT);
+	}
+
+	// to exclusive
+	public Periodogram(Actogram acto, int fromData, int toData,
+		int fromPeriod, int toPeriod, double pLevel, Options options) {
 
 		this.N = toData - fromData;
-		this.measurements = new float[N];
-		System.arraycopy(acto.getData(), fromData, measurements, 0, N);
+		this.measurements = acto.getStorage().view(fromData, toData);
 
 		this.fromPeriod = fromPeriod;
 		this.toPeriod = toPeriod;
@@ -30,7 +101,9 @@ public abstract class Periodogram {
 		this.period = new float[nResult];
 		this.pValues = new float[nResult];
 
-		calculatePeriodogram(pLevel);
+		prepare(pLevel);
+		calculateParallel(pLevel, options);
+		finish(pLevel);
 	}
 
 	public boolean canCalculatePValues() {
@@ -49,11 +122,125 @@ public abstract class Periodogram {
 		return pValues;
 	}
 
-	protected abstract void calculatePeriodogram(double pLevel);
+	/**
+	 * Called before calculatePeriods(), to calculate what is shared by
+	 * all trial periods, e.g. the mean of the data.
+	 */
+	protected void prepare(double pLevel) {
+	}
+
+	/**
+	 * Calculates the entries of period, periodogramValues and pValues
+	 * for the trial periods fromP (inclusive) to toP (exclusive). This
+	 * is called concurrently for disjoint ranges.
+	 */
+	protected abstract void calculatePeriods(int fromP, int toP, double pLevel);
+
+	/**
+	 * Called after calculatePeriods() finished for all trial periods,
+	 * e.g. to calculate p values which depend on all of them.
+	 */
+	protected void finish(double pLevel) {
+	}
 
 	public abstract String getMethod();
 
 	public abstract String getResponseName();
-}
 
+	private void calculateParallel(final double pLevel, Options options) {
+		final int total = toPeriod - fromPeriod;
+		if(total <= 0)
+			return;
+
+		int parallelism = options.parallelism > 0
+			? options.parallelism
+			: Runtime.getRuntime().availableProcessors();
+		final ProgressListener listener = options.listener;
+		final AtomicInteger done = new AtomicInteger();
+
+		if(parallelism == 1) {
+			// calculate on the calling thread, one chunk at a time
+			int chunk = Math.max(1, total / CHUNKS_PER_THREAD);
+			for(int p = fromPeriod; p < toPeriod; p += chunk) {
+				int to = Math.min(toPeriod, p + chunk);
+				calculatePeriods(p, to, pLevel);
+				if(listener != null)
+					listener.progressChanged(to - fromPeriod, total);
+			}
+			return;
+		}
+
+		int chunk = Math.max(1, total / (parallelism * CHUNKS_PER_THREAD));
+		PeriodRange task = new PeriodRange(fromPeriod, toPeriod, chunk, pLevel, done);
+
+		// already running in a pool, e.g. in a batch of periodograms
+		if(ForkJoinTask.inForkJoinPool()) {
+			task.invoke();
+			return;
+		}
+
+		ForkJoinPool pool = options.parallelism > 0
+			? new ForkJoinPool(parallelism)
+			: ForkJoinPool.commonPool();
+		try {
+			pool.execute(task);
+			while(true) {
+				try {
+					task.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+					break;
+				} catch(TimeoutException e) {
+					if(listener != null)
+						listener.progressChanged(done.get(), total);
+				}
+			}
+			if(listener != null)
+				listener.progressChanged(total, total);
+		} catch(InterruptedException e) {
+			task.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Periodogram calculation interrupted", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			if(pool != ForkJoinPool.commonPool())
+				pool.shutdown();
+		}
+	}
 
+	/**
+	 * Splits a range of trial periods until it is not larger than
+	 * chunk, and calculates the chunks.
+	 */
+	@SuppressWarnings("serial")
+	private final class PeriodRange extends RecursiveAction {
+		private final int from, to, chunk;
+		private final double pLevel;
+		private final AtomicInteger done;
+
+		PeriodRange(int from, int to, int chunk, double pLevel, AtomicInteger done) {
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.pLevel = pLevel;
+			this.done = done;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= chunk) {
+				calculatePeriods(from, to, pLevel);
+				done.addAndGet(to - from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(
+				new PeriodRange(from, mid, chunk, pLevel, done),
+				new PeriodRange(mid, to, chunk, pLevel, done));
+		}
+	}
+}
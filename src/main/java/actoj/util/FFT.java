@@ -0,0 +1,161 @@
+package actoj.util;
+
+import actoj.core.FloatStorage;
+
+/**
+ * Fast Fourier transform and chirp-z transform of real data.
+ */
+public class FFT {
+
+	/**
+	 * Returns the smallest power of two which is not smaller than n.
+	 */
+	public static int nextPowerOfTwo(int n) {
+		int l = 1;
+		while(l < n)
+			l <<= 1;
+		return l;
+	}
+
+	/**
+	 * In-place radix-2 FFT of the complex sequence (re, im), whose
+	 * length must be a power of two. The forward transform uses the
+	 * kernel exp(-2 pi i k n / L); the inverse transform is scaled
+	 * by 1 / L.
+	 */
+	public static void transform(double[] re, double[] im, boolean inverse) {
+		int n = re.length;
+		if(n != im.length || Integer.bitCount(n) != 1)
+			throw new IllegalArgumentException("Length must be a power of two: " + n);
+
+		// bit reversal permutation
+		for(int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for(; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if(i < j) {
+				double t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+
+		// twiddle factors, computed once for all stages
+		int half = n / 2;
+		double[] cos = new double[half];
+		double[] sin = new double[half];
+		double sign = inverse ? 1 : -1;
+		for(int i = 0; i < half; i++) {
+			double a = 2 * Math.PI * i / n;
+			cos[i] = Math.cos(a);
+			sin[i] = sign * Math.sin(a);
+		}
+
+		for(int len = 2; len <= n; len <<= 1) {
+			int h = len / 2;
+			int step = n / len;
+			for(int i = 0; i < n; i += len) {
+				for(int k = 0; k < h; k++) {
+					double wr = cos[k * step];
+					double wi = sin[k * step];
+					int a = i + k, b = a + h;
+					double xr = re[b] * wr - im[b] * wi;
+					double xi = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+				}
+			}
+		}
+
+		if(inverse) {
+			for(int i = 0; i < n; i++) {
+				re[i] /= n;
+				im[i] /= n;
+			}
+		}
+	}
+
+	/**
+	 * Chirp-z transform (Bluestein's algorithm): Evaluates the discrete
+	 * time Fourier transform
+	 * <pre>
+	 * X(f) = sum_n x[n] exp(-2 pi i f n)
+	 * </pre>
+	 * of the real sequence x at the m frequencies f = f0 + k * df,
+	 * k = 0 .. m - 1, where f is in cycles per sample. Unlike an FFT,
+	 * the frequencies need not be multiples of 1 / x.size(), which
+	 * allows to zoom into a narrow frequency band with a fine
+	 * resolution. The cost is that of three FFTs of length
+	 * x.size() + m - 1, rounded up to a power of two.
+	 * @param re Receives the real parts, must have length m.
+	 * @param im Receives the imaginary parts, must have length m.
+	 */
+	public static void chirpZ(FloatStorage x, double f0, double df, int m,
+			double[] re, double[] im) {
+		int n = x.size();
+		int l = nextPowerOfTwo(n + m - 1);
+
+		// a[j] = x[j] * exp(-2 pi i f0 j) * exp(-pi i df j^2)
+		double[] ar = new double[l];
+		double[] ai = new double[l];
+		for(int j = 0; j < n; j++) {
+			double phase = -Math.PI * (2 * frac(f0 * j) + frac2(df, j));
+			double v = x.get(j);
+			ar[j] = v * Math.cos(phase);
+			ai[j] = v * Math.sin(phase);
+		}
+
+		// b[j] = exp(pi i df j^2), for j = -(n - 1) .. m - 1
+		double[] br = new double[l];
+		double[] bi = new double[l];
+		int nb = Math.max(n, m);
+		for(int j = 0; j < nb; j++) {
+			double phase = Math.PI * frac2(df, j);
+			double c = Math.cos(phase), s = Math.sin(phase);
+			if(j < m) {
+				br[j] = c;
+				bi[j] = s;
+			}
+			if(j > 0 && j < n) {
+				br[l - j] = c;
+				bi[l - j] = s;
+			}
+		}
+
+		// convolve a and b
+		transform(ar, ai, false);
+		transform(br, bi, false);
+		for(int j = 0; j < l; j++) {
+			double r = ar[j] * br[j] - ai[j] * bi[j];
+			double i = ar[j] * bi[j] + ai[j] * br[j];
+			ar[j] = r;
+			ai[j] = i;
+		}
+		transform(ar, ai, true);
+
+		// X[k] = exp(-pi i df k^2) * (a * b)[k]
+		for(int k = 0; k < m; k++) {
+			double phase = -Math.PI * frac2(df, k);
+			double c = Math.cos(phase), s = Math.sin(phase);
+			re[k] = ar[k] * c - ai[k] * s;
+			im[k] = ar[k] * s + ai[k] * c;
+		}
+	}
+
+	/**
+	 * Returns v modulo 1, to keep the arguments of sin and cos small.
+	 */
+	private static double frac(double v) {
+		return v - Math.floor(v);
+	}
+
+	/**
+	 * Returns (df * j^2) modulo 2.
+	 */
+	private static double frac2(double df, int j) {
+		double v = df * ((long)j * j);
+		return v - 2 * Math.floor(v / 2);
+	}
+}
@@ -1,24 +1,46 @@
 package actoj.util;
 
+import java.util.ArrayList;
+
 /**
  * Utility class representing a simple growing float array.
+ *
+ * Values are stored in chunks: The first chunk has the capacity given
+ * to the constructor, and when it is full, further chunks are appended
+ * instead of reallocating and copying the existing values. If the
+ * capacity was estimated correctly, all values end up in a single
+ * chunk, which release() hands over without copying.
  */
 public class FloatArray {
 
 	/** The initial length of the array. */
 	public static final int INITIAL_LENGTH = 20;
 
-	/** The array. */
+	/** The chunks which are already full. */
+	private final ArrayList<float[]> full = new ArrayList<float[]>();
+
+	/** The chunk which is currently filled. */
 	private float[] data;
 
-	/** The current length of the array. */
+	/** The number of values in the current chunk. */
 	private int length;
 
+	/** The number of values in the full chunks. */
+	private int fullLength;
+
 	/**
 	 * Constructor.
 	 */
 	public FloatArray() {
-		data = new float[INITIAL_LENGTH];
+		this(INITIAL_LENGTH);
+	}
+
+	/**
+	 * Constructor.
+	 * @param capacity The expected number of values.
+	 */
+	public FloatArray(int capacity) {
+		data = new float[Math.max(1, capacity)];
 		length = 0;
 	}
 
@@ -27,20 +49,49 @@ public class FloatArray {
 	 */
 	public void add(float v) {
 		if(length == data.length) {
-			float[] tmp = data;
-			data = new float[2 * length];
-			System.arraycopy(tmp, 0, data, 0, length);
+			full.add(data);
+			fullLength += length;
+			// grow by half of the current size, like ArrayList
+			data = new float[Math.max(INITIAL_LENGTH, fullLength / 2)];
+			length = 0;
 		}
 		data[length++] = v;
 	}
 
+	/**
+	 * Returns the number of values.
+	 */
+	public int size() {
+		return fullLength + length;
+	}
+
 	/**
 	 * Returns a new (trimmed) array with the current values.
 	 */
 	public float[] toArray() {
-		float[] ret = new float[length];
-		System.arraycopy(data, 0, ret, 0, length);
+		float[] ret = new float[size()];
+		int offs = 0;
+		for(float[] chunk : full) {
+			System.arraycopy(chunk, 0, ret, offs, chunk.length);
+			offs += chunk.length;
+		}
+		System.arraycopy(data, 0, ret, offs, length);
 		return ret;
 	}
-}
 
+	/**
+	 * Returns a trimmed array with the current values, like toArray(),
+	 * but hands over the internal storage if it holds exactly these
+	 * values. The FloatArray is empty afterwards.
+	 */
+	public float[] release() {
+		float[] ret = full.isEmpty() && length == data.length
+			? data
+			: toArray();
+		full.clear();
+		fullLength = 0;
+		data = new float[INITIAL_LENGTH];
+		length = 0;
+		return ret;
+	}
+}
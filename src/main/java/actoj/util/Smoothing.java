@@ -0,0 +1,324 @@
+package actoj.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import actoj.core.FloatStorage;
+
+/**
+ * Smoothing of actogram data. All filters treat the data outside the
+ * storage as zero, and return a new storage of the same type and size.
+ *
+ * convolve() picks the fastest exact method for a kernel: a running sum
+ * for uniform kernels, a direct convolution for short kernels, and an
+ * FFT convolution for long ones. gaussian() is a recursive filter whose
+ * cost doesn't depend on sigma, at the price of a small approximation
+ * error.
+ */
+public class Smoothing {
+
+	/** Kernels up to this length are convolved directly. */
+	private static final int MAX_DIRECT = 48;
+
+	/** Smaller sigmas are smoothed with a kernel instead of recursively. */
+	private static final float MIN_RECURSIVE_SIGMA = 3;
+
+	/** The number of samples which are processed at once. */
+	private static final int BLOCK = 1 << 16;
+
+	/**
+	 * Returns out[i] = sum_j kernel[j] * data[i + j - kernel.length / 2],
+	 * like Actogram.convolve().
+	 * @throws IllegalArgumentException if the kernel is empty.
+	 */
+	public static FloatStorage convolve(FloatStorage data, float[] kernel) {
+		if(kernel.length == 0)
+			throw new IllegalArgumentException("Empty kernel");
+		if(isUniform(kernel))
+			return box(data, kernel.length, kernel[0]);
+		if(kernel.length <= MAX_DIRECT)
+			return direct(data, kernel);
+		return fft(data, kernel);
+	}
+
+	/**
+	 * Returns the running average over length samples, with the same
+	 * alignment as convolve() with a uniform kernel of that length.
+	 */
+	public static FloatStorage box(FloatStorage data, int length) {
+		return box(data, length, 1f / length);
+	}
+
+	/**
+	 * Smoothes the data with a gaussian of standard deviation sigma, in
+	 * samples, using the recursive filter of Young and van Vliet (1995),
+	 * applied forward and backward. Small sigmas, for which the
+	 * recursive filter is inaccurate, are convolved with
+	 * Filters.makeGaussianKernel() instead.
+	 */
+	public static FloatStorage gaussian(FloatStorage data, float sigma) {
+		if(sigma < MIN_RECURSIVE_SIGMA)
+			return convolve(data, Filters.makeGaussianKernel(sigma));
+
+		double[] coeff = recursiveCoefficients(sigma);
+		double B = coeff[0], b1 = coeff[1], b2 = coeff[2], b3 = coeff[3];
+
+		int n = data.size();
+		// the forward pass continues into the zeros after the data,
+		// for the backward pass to start from there
+		int pad = (int)Math.ceil(8 * sigma);
+		double[] w = new double[n + pad];
+		float[] buf = new float[Math.min(BLOCK, n)];
+		double w1 = 0, w2 = 0, w3 = 0;
+		for(int o = 0; o < n; o += BLOCK) {
+			int len = Math.min(BLOCK, n - o);
+			data.get(o, buf, 0, len);
+			for(int i = 0; i < len; i++) {
+				double v = B * buf[i] + b1 * w1 + b2 * w2 + b3 * w3;
+				w[o + i] = v;
+				w3 = w2;
+				w2 = w1;
+				w1 = v;
+			}
+		}
+		for(int i = n; i < n + pad; i++) {
+			double v = b1 * w1 + b2 * w2 + b3 * w3;
+			w[i] = v;
+			w3 = w2;
+			w2 = w1;
+			w1 = v;
+		}
+
+		FloatStorage out = data.create(n);
+		double y1 = 0, y2 = 0, y3 = 0;
+		for(int i = n + pad - 1; i >= n; i--) {
+			double v = B * w[i] + b1 * y1 + b2 * y2 + b3 * y3;
+			y3 = y2;
+			y2 = y1;
+			y1 = v;
+		}
+		for(int e = n; e > 0; e -= BLOCK) {
+			int o = Math.max(0, e - BLOCK);
+			for(int i = e - 1; i >= o; i--) {
+				double v = B * w[i] + b1 * y1 + b2 * y2 + b3 * y3;
+				buf[i - o] = (float)v;
+				y3 = y2;
+				y2 = y1;
+				y1 = v;
+			}
+			out.set(o, buf, 0, e - o);
+		}
+		return out;
+	}
+
+	/**
+	 * Returns {B, b1, b2, b3} of the recursive gaussian, with the
+	 * coefficients normalized by b0.
+	 */
+	private static double[] recursiveCoefficients(double sigma) {
+		double q = sigma >= 2.5
+			? 0.98711 * sigma - 0.96330
+			: 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+		double q2 = q * q, q3 = q2 * q;
+		double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		double b1 = (2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0;
+		double b2 = -(1.4281 * q2 + 1.26661 * q3) / b0;
+		double b3 = 0.422205 * q3 / b0;
+		return new double[] { 1 - (b1 + b2 + b3), b1, b2, b3 };
+	}
+
+	private static boolean isUniform(float[] kernel) {
+		for(int i = 1; i < kernel.length; i++)
+			if(kernel[i] != kernel[0])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Reads data[from, from + len) into buf, with zeros outside the
+	 * data.
+	 */
+	private static void read(FloatStorage data, int from, float[] buf, int len) {
+		int n = data.size();
+		int s = Math.max(0, from), e = Math.min(n, from + len);
+		Arrays.fill(buf, 0, len, 0);
+		if(s < e)
+			data.get(s, buf, s - from, e - s);
+	}
+
+	private static FloatStorage direct(FloatStorage data, float[] kernel) {
+		int n = data.size();
+		int kl = kernel.length;
+		int c = kl / 2;
+		FloatStorage out = data.create(n);
+		float[] in = new float[BLOCK + kl - 1];
+		float[] res = new float[BLOCK];
+		for(int o = 0; o < n; o += BLOCK) {
+			int len = Math.min(BLOCK, n - o);
+			// the zeros around the data make all samples interior ones
+			read(data, o - c, in, len + kl - 1);
+			for(int i = 0; i < len; i++) {
+				float s = 0;
+				for(int j = 0; j < kl; j++)
+					s += kernel[j] * in[i + j];
+				res[i] = s;
+			}
+			out.set(o, res, 0, len);
+		}
+		return out;
+	}
+
+	private static FloatStorage box(FloatStorage data, int length, float weight) {
+		int n = data.size();
+		int c = length / 2;
+		FloatStorage out = data.create(n);
+		float[] in = new float[BLOCK + length];
+		float[] res = new float[BLOCK];
+		for(int o = 0; o < n; o += BLOCK) {
+			int len = Math.min(BLOCK, n - o);
+			read(data, o - c, in, len + length);
+			double sum = 0;
+			for(int j = 0; j < length; j++)
+				sum += in[j];
+			for(int i = 0; i < len; i++) {
+				res[i] = (float)(weight * sum);
+				sum += in[i + length] - in[i];
+			}
+			out.set(o, res, 0, len);
+		}
+		return out;
+	}
+
+	/**
+	 * Overlap-save convolution, transforming two blocks of real data at
+	 * once as the real and imaginary part of one complex FFT.
+	 */
+	private static FloatStorage fft(FloatStorage data, float[] kernel) {
+		int n = data.size();
+		int kl = kernel.length;
+		int c = kl / 2;
+		int m = FFT.nextPowerOfTwo(Math.max(4 * kl, 4096));
+		int l = m - kl + 1;
+
+		// the spectrum of the reversed kernel, which turns the
+		// correlation of convolve() into a convolution
+		double[] gre = new double[m];
+		double[] gim = new double[m];
+		for(int j = 0; j < kl; j++)
+			gre[j] = kernel[kl - 1 - j];
+		FFT.transform(gre, gim, false);
+
+		FloatStorage out = data.create(n);
+		double[] re = new double[m];
+		double[] im = new double[m];
+		float[] in = new float[m];
+		float[] res = new float[l];
+		for(int o = 0; o < n; o += 2 * l) {
+			int o2 = o + l;
+			// segment for output o starts at o + (kl - 1 - c) - (kl - 1)
+			read(data, o - c, in, m);
+			for(int i = 0; i < m; i++)
+				re[i] = in[i];
+			if(o2 < n) {
+				read(data, o2 - c, in, m);
+				for(int i = 0; i < m; i++)
+					im[i] = in[i];
+			} else {
+				Arrays.fill(im, 0);
+			}
+			FFT.transform(re, im, false);
+			for(int i = 0; i < m; i++) {
+				double r = re[i] * gre[i] - im[i] * gim[i];
+				im[i] = re[i] * gim[i] + im[i] * gre[i];
+				re[i] = r;
+			}
+			FFT.transform(re, im, true);
+
+			int len = Math.min(l, n - o);
+			for(int i = 0; i < len; i++)
+				res[i] = (float)re[kl - 1 + i];
+			out.set(o, res, 0, len);
+			if(o2 < n) {
+				len = Math.min(l, n - o2);
+				for(int i = 0; i < len; i++)
+					res[i] = (float)im[kl - 1 + i];
+				out.set(o2, res, 0, len);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * The plain convolution which was used before, for comparison.
+	 */
+	private static FloatStorage reference(FloatStorage data, float[] kernel) {
+		int dl = data.size();
+		int kl = kernel.length;
+		FloatStorage n = data.create(dl);
+		for(int i = 0; i < dl; i++) {
+			float s = 0;
+			for(int j = 0; j < kl; j++) {
+				int idx = i + j - kl/2;
+				float v = (idx < 0 || idx >= dl) ? 0 : data.get(idx);
+				s += kernel[j] * v;
+			}
+			n.set(i, s);
+		}
+		return n;
+	}
+
+	private static double maxError(FloatStorage a, FloatStorage b) {
+		double e = 0;
+		for(int i = 0; i < a.size(); i++)
+			e = Math.max(e, Math.abs(a.get(i) - b.get(i)));
+		return e;
+	}
+
+	/**
+	 * Compares run time and accuracy with the plain convolution, for a
+	 * simulated 1-minute recording of the given number of days
+	 * (default 30) with activity values up to 100.
+	 */
+	public static void main(String[] args) {
+		int days = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+		FloatStorage data = FloatStorage.Type.Heap.create(days * 1440);
+		Random rand = new Random(42);
+		for(int i = 0; i < data.size(); i++)
+			data.set(i, rand.nextInt(100));
+
+		for(float sigma : new float[] { 2, 10, 30 }) {
+			float[] kernel = Filters.makeGaussianKernel(sigma);
+			for(int r = 0; r < 3; r++) {
+				long start = System.nanoTime();
+				FloatStorage ref = reference(data, kernel);
+				long t1 = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				FloatStorage conv = convolve(data, kernel);
+				long t2 = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				FloatStorage rec = gaussian(data, sigma);
+				long t3 = System.nanoTime() - start;
+
+				if(r == 2)
+					System.out.printf("sigma %.0f (%d taps): plain %.1f ms, " +
+						"convolve %.1f ms (max. error %.1e), " +
+						"recursive %.1f ms (max. error %.1e)%n",
+						sigma, kernel.length, t1 * 1e-6,
+						t2 * 1e-6, maxError(ref, conv),
+						t3 * 1e-6, maxError(ref, rec));
+			}
+		}
+
+		float[] uniform = Filters.makeUniformKernel(61);
+		long start = System.nanoTime();
+		FloatStorage ref = reference(data, uniform);
+		long t1 = System.nanoTime() - start;
+		start = System.nanoTime();
+		FloatStorage conv = convolve(data, uniform);
+		long t2 = System.nanoTime() - start;
+		System.out.printf("box (61 taps): plain %.1f ms, running sum %.1f ms " +
+			"(max. error %.1e)%n", t1 * 1e-6, t2 * 1e-6, maxError(ref, conv));
+	}
+}